@@ -0,0 +1,116 @@
+package io.bdrc.jena.sttl.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.bdrc.jena.sttl.CompareComplex;
+import io.bdrc.jena.sttl.CompareLiterals;
+import io.bdrc.jena.sttl.ComparePredicates;
+
+/**
+* Sorts with the comparators of the writer, on the nodes of generated graphs:
+* the literals of the labels shape, the predicates of the triples of the
+* authority shape and the blank nodes of the outline shape.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx16g" })
+@State(Scope.Benchmark)
+public class ComparatorBenchmark {
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int size;
+
+    @Param({ "42" })
+    public long seed;
+
+    private List<Node> literals;
+    private List<Node> predicates;
+    private List<Node> blanks;
+    private Graph outline;
+
+    // the distinct objects of the graph that are not URIs, shuffled
+    private List<Node> objects(final Graph graph) {
+        final Set<Node> res = new HashSet<>();
+        graph.find().forEachRemaining((Triple t) -> {
+            if (!t.getObject().isURI())
+                res.add(t.getObject());
+        });
+        final List<Node> list = new ArrayList<>(res);
+        Collections.sort(list, (n1, n2) -> n1.toString().compareTo(n2.toString()));
+        Collections.shuffle(list, new Random(seed));
+        return list;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.literals = objects(Generators.graph("labels", size, seed));
+        // the predicates of all the triples, as in the clusters of a graph
+        this.predicates = new ArrayList<>();
+        Generators.graph("authority", size, seed).find().forEachRemaining(t -> this.predicates.add(t.getPredicate()));
+        Collections.shuffle(this.predicates, new Random(seed));
+        this.outline = Generators.graph("outline", size, seed);
+        this.blanks = new ArrayList<>();
+        for (final Node n : objects(this.outline))
+            if (n.isBlank())
+                this.blanks.add(n);
+    }
+
+    @Benchmark
+    public List<Node> compareLiterals() {
+        final List<Node> res = new ArrayList<>(literals);
+        Collections.sort(res, new CompareLiterals());
+        return res;
+    }
+
+    @Benchmark
+    public List<Node> compareLiteralsCachedKeys() {
+        final List<Node> res = new ArrayList<>(literals);
+        Collections.sort(res, new CompareLiterals(res.size()));
+        return res;
+    }
+
+    @Benchmark
+    public List<Node> comparePredicates() {
+        final List<Node> res = new ArrayList<>(predicates);
+        Collections.sort(res, new ComparePredicates());
+        return res;
+    }
+
+    @Benchmark
+    public List<Node> comparePredicatesShared() {
+        final List<Node> res = new ArrayList<>(predicates);
+        Collections.sort(res, ComparePredicates.forPriorities(ComparePredicates.getDefaultNSPriorities(), 2));
+        return res;
+    }
+
+    @Benchmark
+    public List<Node> compareComplex() {
+        final List<Node> res = new ArrayList<>(blanks);
+        new CompareComplex(outline).sort(res);
+        return res;
+    }
+}
@@ -0,0 +1,279 @@
+package io.bdrc.jena.sttl.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.vocabulary.RDF;
+import org.apache.jena.vocabulary.RDFS;
+import org.apache.jena.vocabulary.SKOS;
+
+/**
+* Seeded generators of graphs and datasets with the shapes of BDRC records,
+* from a few thousand to millions of triples. The same seed and size always
+* give the same graph (with the same blank node labels).
+*
+* Shapes:
+* <ul>
+* <li>authority: wide person records, with many labels and blank node events and notes</li>
+* <li>outline: deep trees of blank nodes, as in text outlines</li>
+* <li>list: subjects with long rdf:Lists of resources and literals</li>
+* <li>labels: resources with many multilingual labels</li>
+* </ul>
+*/
+public final class Generators {
+
+    public static final String BDO = "http://purl.bdrc.io/ontology/core/";
+    public static final String BDR = "http://purl.bdrc.io/resource/";
+    public static final String ADM = "http://purl.bdrc.io/ontology/admin/";
+    public static final String BDG = "http://purl.bdrc.io/graph/";
+    public static final String BDA = "http://purl.bdrc.io/admindata/";
+
+    public static final String[] SHAPES = { "authority", "outline", "list", "labels" };
+
+    private static final String[] LANGS = { "bo-x-ewts", "en", "zh-hans", "zh-latn-pinyin", "sa-deva", "sa-x-iast", "bo" };
+    private static final String[] SYLLABLES = { "bka'", "gsung", "'bum", "rin", "chen", "bzang", "po", "dpal", "ldan", "shes",
+            "rab", "rgya", "mtsho", "blo", "gros", "sangs", "rgyas", "chos", "kyi", "rje" };
+    private static final String[] WORDS = { "collected", "works", "of", "the", "great", "master", "commentary", "on",
+            "treatise", "verses", "biography", "teachings", "lineage", "volume", "edition" };
+    private static final String[] CJK = { "大", "乘", "經", "論", "般", "若", "波", "羅", "蜜", "多", "心", "法", "華" };
+    private static final String[] TIBT = { "བཀའ་", "གསུང་", "འབུམ་", "རིན་", "ཆེན་", "བཟང་", "པོ་", "དཔལ་", "ལྡན་", "ཤེས་", "རབ་" };
+    private static final String[] DEVA = { "प्र", "ज्ञा", "पा", "र", "मि", "ता", "सू", "त्र", "म", "हा", "या", "न" };
+
+    private final Random random;
+    private final Graph graph;
+    private int nbResources = 0;
+    private int nbBlanks = 0;
+
+    private Generators(final long seed, final Graph graph) {
+        this.random = new Random(seed);
+        this.graph = graph;
+    }
+
+    /**
+    * @param shape
+    * one of {@link #SHAPES}
+    * @param nbTriples
+    * the approximate number of triples
+    * @param seed
+    * the seed of the random generator
+    * @return
+    * a new graph of at least nbTriples triples
+    */
+    public static Graph graph(final String shape, final int nbTriples, final long seed) {
+        final Graph res = GraphFactory.createDefaultGraph();
+        setPrefixes(res);
+        final Generators gen = new Generators(seed, res);
+        while (res.size() < nbTriples)
+            gen.record(shape);
+        return res;
+    }
+
+    /**
+    * @param nbGraphs
+    * the number of named graphs, each one with authority records
+    * @param nbTriples
+    * the approximate total number of triples
+    * @param seed
+    * the seed of the random generator
+    * @return
+    * a new dataset of nbGraphs graphs with at least nbTriples triples
+    */
+    public static DatasetGraph dataset(final int nbGraphs, final int nbTriples, final long seed) {
+        final DatasetGraph res = DatasetGraphFactory.createGeneral();
+        setPrefixes(res.getDefaultGraph());
+        res.prefixes().putAll(res.getDefaultGraph().getPrefixMapping());
+        final Random random = new Random(seed);
+        final int perGraph = Math.max(1, nbTriples / nbGraphs);
+        for (int i = 0; i < nbGraphs; i++) {
+            final Graph g = graph(SHAPES[random.nextInt(SHAPES.length)], perGraph, random.nextLong());
+            final Node graphName = NodeFactory.createURI(BDG + "G" + i);
+            g.find().forEachRemaining(t -> res.add(graphName, t.getSubject(), t.getPredicate(), t.getObject()));
+        }
+        return res;
+    }
+
+    private static void setPrefixes(final Graph g) {
+        g.getPrefixMapping().setNsPrefix("bdo", BDO);
+        g.getPrefixMapping().setNsPrefix("bdr", BDR);
+        g.getPrefixMapping().setNsPrefix("adm", ADM);
+        g.getPrefixMapping().setNsPrefix("bdg", BDG);
+        g.getPrefixMapping().setNsPrefix("bda", BDA);
+        g.getPrefixMapping().setNsPrefix("rdf", RDF.getURI());
+        g.getPrefixMapping().setNsPrefix("rdfs", RDFS.getURI());
+        g.getPrefixMapping().setNsPrefix("skos", SKOS.getURI());
+        g.getPrefixMapping().setNsPrefix("xsd", XSDDatatype.XSD + "#");
+        // never used, for onlyWriteUsedPrefixes
+        g.getPrefixMapping().setNsPrefix("owl", "http://www.w3.org/2002/07/owl#");
+        g.getPrefixMapping().setNsPrefix("foaf", "http://xmlns.com/foaf/0.1/");
+        g.getPrefixMapping().setNsPrefix("dcterms", "http://purl.org/dc/terms/");
+    }
+
+    private void record(final String shape) {
+        switch (shape) {
+        case "authority":
+            authority();
+            break;
+        case "outline":
+            outline();
+            break;
+        case "list":
+            list();
+            break;
+        case "labels":
+            labels();
+            break;
+        default:
+            throw new IllegalArgumentException("unknown shape: " + shape);
+        }
+    }
+
+    private Node resource(final String prefix) {
+        return NodeFactory.createURI(BDR + prefix + (nbResources++));
+    }
+
+    // a resource that may have been generated before
+    private Node oldResource(final String prefix) {
+        return NodeFactory.createURI(BDR + prefix + random.nextInt(nbResources + 1));
+    }
+
+    private Node blank() {
+        return NodeFactory.createBlankNode("b" + (nbBlanks++));
+    }
+
+    private static Node p(final String ns, final String localName) {
+        return NodeFactory.createURI(ns + localName);
+    }
+
+    private void add(final Node s, final Node p, final Node o) {
+        graph.add(s, p, o);
+    }
+
+    private String words(final String[] dict, final int min, final int max, final String sep) {
+        final int n = min + random.nextInt(max - min + 1);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                sb.append(sep);
+            sb.append(dict[random.nextInt(dict.length)]);
+        }
+        return sb.toString();
+    }
+
+    // a label in a random language, in a script matching the language
+    private Node label() {
+        final String lang = LANGS[random.nextInt(LANGS.length)];
+        final String lex;
+        if (lang.startsWith("zh-hans"))
+            lex = words(CJK, 2, 12, "");
+        else if (lang.equals("sa-deva"))
+            lex = words(DEVA, 2, 10, "");
+        else if (lang.equals("bo"))
+            lex = words(TIBT, 2, 10, "");
+        else if (lang.equals("en"))
+            lex = words(WORDS, 2, 8, " ");
+        else
+            lex = words(SYLLABLES, 2, 10, " ");
+        return NodeFactory.createLiteralLang(lex, lang);
+    }
+
+    private Node year() {
+        return NodeFactory.createLiteralDT(Integer.toString(1000 + random.nextInt(1000)), XSDDatatype.XSDgYear);
+    }
+
+    private void authority() {
+        final Node s = resource("P");
+        add(s, RDF.type.asNode(), p(BDO, "Person"));
+        final int nbLabels = 1 + random.nextInt(4);
+        for (int i = 0; i < nbLabels; i++)
+            add(s, SKOS.prefLabel.asNode(), label());
+        final int nbAltLabels = random.nextInt(12);
+        for (int i = 0; i < nbAltLabels; i++)
+            add(s, SKOS.altLabel.asNode(), label());
+        final int nbEvents = random.nextInt(5);
+        for (int i = 0; i < nbEvents; i++) {
+            final Node e = blank();
+            add(s, p(BDO, "personEvent"), e);
+            add(e, RDF.type.asNode(), p(BDO, random.nextBoolean() ? "PersonBirth" : "PersonDeath"));
+            add(e, p(BDO, "onYear"), year());
+            if (random.nextBoolean())
+                add(e, p(BDO, "eventWhere"), oldResource("G"));
+        }
+        final int nbNames = random.nextInt(6);
+        for (int i = 0; i < nbNames; i++) {
+            final Node n = blank();
+            add(s, p(BDO, "personName"), n);
+            add(n, RDF.type.asNode(), p(BDO, "PersonPrimaryName"));
+            add(n, RDFS.label.asNode(), label());
+        }
+        final int nbNotes = random.nextInt(3);
+        for (int i = 0; i < nbNotes; i++) {
+            final Node n = blank();
+            add(s, p(BDO, "note"), n);
+            add(n, p(BDO, "noteText"), NodeFactory.createLiteralLang(words(WORDS, 10, 60, " "), "en"));
+            if (random.nextBoolean())
+                add(n, p(BDO, "noteSource"), oldResource("W"));
+        }
+        final int nbRelations = random.nextInt(8);
+        for (int i = 0; i < nbRelations; i++)
+            add(s, p(BDO, random.nextBoolean() ? "personStudentOf" : "personTeacherOf"), oldResource("P"));
+        add(s, p(ADM, "status"), p(BDA, random.nextBoolean() ? "StatusReleased" : "StatusWithdrawn"));
+        add(s, p(ADM, "logWhen"), NodeFactory.createLiteralDT("2019-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10) + "T10:00:00Z", XSDDatatype.XSDdateTime));
+    }
+
+    private void outlineNode(final Node parent, final int depth) {
+        final int nbParts = (depth == 0) ? 1 + random.nextInt(3) : random.nextInt(4);
+        for (int i = 0; i < nbParts; i++) {
+            final Node part = blank();
+            add(parent, p(BDO, "hasPart"), part);
+            add(part, RDF.type.asNode(), p(BDO, "Instance"));
+            add(part, p(BDO, "partIndex"), NodeFactory.createLiteralDT(Integer.toString(i + 1), XSDDatatype.XSDinteger));
+            add(part, SKOS.prefLabel.asNode(), label());
+            if (random.nextInt(3) == 0)
+                add(part, p(BDO, "instanceOf"), oldResource("WA"));
+            if (depth < 6)
+                outlineNode(part, depth + 1);
+        }
+    }
+
+    private void outline() {
+        final Node s = resource("O");
+        add(s, RDF.type.asNode(), p(BDO, "Outline"));
+        add(s, p(BDO, "outlineOf"), oldResource("MW"));
+        outlineNode(s, 0);
+    }
+
+    private void list() {
+        final Node s = resource("W");
+        add(s, RDF.type.asNode(), p(BDO, "Work"));
+        add(s, SKOS.prefLabel.asNode(), label());
+        final int length = 20 + random.nextInt(480);
+        final List<Node> elts = new ArrayList<>(length);
+        final boolean literals = random.nextBoolean();
+        for (int i = 0; i < length; i++)
+            elts.add(literals ? label() : oldResource("P"));
+        Node head = RDF.nil.asNode();
+        for (int i = length - 1; i >= 0; i--) {
+            final Node cell = blank();
+            add(cell, RDF.first.asNode(), elts.get(i));
+            add(cell, RDF.rest.asNode(), head);
+            head = cell;
+        }
+        add(s, p(BDO, literals ? "workTitles" : "workAuthors"), head);
+    }
+
+    private void labels() {
+        final Node s = resource("T");
+        add(s, RDF.type.asNode(), p(BDO, "Topic"));
+        final int nbLabels = 5 + random.nextInt(60);
+        for (int i = 0; i < nbLabels; i++)
+            add(s, random.nextInt(4) == 0 ? SKOS.prefLabel.asNode() : SKOS.altLabel.asNode(), label());
+    }
+}
@@ -0,0 +1,93 @@
+package io.bdrc.jena.sttl.bench;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.riot.RDFWriterBuilder;
+
+import io.bdrc.jena.sttl.STTLWriter;
+
+/**
+* Heap retained by the writers per triple written, for the shapes of
+* {@link Generators}.
+*
+* The writers only start writing to the output stream once the graph has
+* been analyzed and the first subjects written, the heap used at that point
+* (after a full GC) minus the heap used before the write is what the writer
+* retains. Small graphs are written in one go when the output is flushed, and
+* show nothing retained. Run with:
+*
+* <pre>
+* java -cp target/benchmarks.jar io.bdrc.jena.sttl.bench.RetainedHeap [size...]
+* </pre>
+*/
+public final class RetainedHeap {
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private RetainedHeap() {
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    // measures the heap used at the first write
+    private static final class ProbeOutputStream extends OutputStream {
+        long used = -1;
+
+        private void probe() {
+            if (used < 0)
+                used = usedHeap();
+        }
+
+        @Override
+        public void write(final int b) {
+            probe();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            probe();
+        }
+    }
+
+    private static void write(final Graph graph, final Lang lang, final RDFFormat format, final OutputStream out) {
+        final RDFWriterBuilder builder = RDFWriter.create().source(graph);
+        if (lang != null)
+            builder.lang(lang);
+        else
+            builder.format(format);
+        builder.build().output(out);
+    }
+
+    private static double retainedPerTriple(final Graph graph, final Lang lang, final RDFFormat format) {
+        // so that classes and caches loaded by the first write are not counted
+        write(graph, lang, format, OutputStream.nullOutputStream());
+        final long before = usedHeap();
+        final ProbeOutputStream out = new ProbeOutputStream();
+        write(graph, lang, format, out);
+        return (double) Math.max(0, out.used - before) / graph.size();
+    }
+
+    public static void main(final String[] args) {
+        final Lang sttl = STTLWriter.registerWriter();
+        final String[] sizes = (args.length > 0) ? args : new String[] { "1000", "100000", "1000000" };
+        System.out.printf("%-10s %10s %14s %14s%n", "shape", "triples", "sttl B/triple", "jena B/triple");
+        for (final String shape : Generators.SHAPES) {
+            for (final String size : sizes) {
+                final Graph graph = Generators.graph(shape, Integer.parseInt(size), 42);
+                final double sttlRetained = retainedPerTriple(graph, sttl, null);
+                final double jenaRetained = retainedPerTriple(graph, null, RDFFormat.TURTLE_PRETTY);
+                System.out.printf("%-10s %10d %14.1f %14.1f%n", shape, graph.size(), sttlRetained, jenaRetained);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package io.bdrc.jena.sttl.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.riot.RDFWriterBuilder;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.Symbol;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.bdrc.jena.sttl.FragmentCache;
+import io.bdrc.jena.sttl.STTLWriter;
+import io.bdrc.jena.sttl.STriGWriter;
+
+/**
+* End to end writes of generated graphs and datasets, compared to the pretty
+* writers of Jena.
+*
+* sttlFragmentCache writes the graphs of sttl with a FragmentCache holding all
+* their subjects, to compare the hits with the rendering.
+*
+* The triples counter gives the throughput in triples per second, run with
+* <code>-prof gc</code> for the allocation rate (divide gc.alloc.rate.norm by
+* the triples per operation for the allocation per triple).
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx16g" })
+public class WriterBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class GraphState {
+        @Param({ "authority", "outline", "list", "labels" })
+        public String shape;
+
+        @Param({ "1000", "100000", "1000000", "10000000" })
+        public int size;
+
+        @Param({ "42" })
+        public long seed;
+
+        Graph graph;
+        Lang sttl;
+        Context context;
+        Context usedPrefixesContext;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.sttl = STTLWriter.registerWriter();
+            this.graph = Generators.graph(this.shape, this.size, this.seed);
+            this.context = new Context();
+            this.usedPrefixesContext = new Context();
+            this.usedPrefixesContext.set(Symbol.create(STTLWriter.SYMBOLS_NS + "onlyWriteUsedPrefixes"), true);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FragmentCacheState {
+        @Param({ "authority", "outline", "list", "labels" })
+        public String shape;
+
+        @Param({ "1000", "100000", "1000000", "10000000" })
+        public int size;
+
+        @Param({ "42" })
+        public long seed;
+
+        Graph graph;
+        Lang sttl;
+        Path dir;
+        FragmentCache cache;
+        Context context;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.sttl = STTLWriter.registerWriter();
+            this.graph = Generators.graph(this.shape, this.size, this.seed);
+            this.dir = Files.createTempDirectory("sttl-bench-fragments");
+            this.cache = new FragmentCache(this.dir, 1L << 34);
+            this.context = new Context();
+            this.context.set(Symbol.create(STTLWriter.SYMBOLS_NS + "fragmentCache"), this.cache);
+            // the measured writes only have hits
+            write(this.graph, this.sttl, null, this.context);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.cache.clear();
+            this.cache.close();
+            Files.deleteIfExists(this.dir.resolve("lock"));
+            Files.deleteIfExists(this.dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class DatasetState {
+        @Param({ "10", "1000" })
+        public int graphs;
+
+        @Param({ "100000" })
+        public int size;
+
+        @Param({ "42" })
+        public long seed;
+
+        DatasetGraph dsg;
+        long nbQuads;
+        Lang strig;
+        Context context;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.strig = STriGWriter.registerWriter();
+            this.dsg = Generators.dataset(this.graphs, this.size, this.seed);
+            this.nbQuads = this.dsg.stream().count();
+            this.context = new Context();
+        }
+    }
+
+    /**
+    * Number of triples written, reported as a rate.
+    */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Triples {
+        public long triples;
+    }
+
+    // counts the bytes so that the output can't be optimized away
+    private static final class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+
+    private static long write(final Graph graph, final Lang lang, final RDFFormat format, final Context context) {
+        final CountingOutputStream out = new CountingOutputStream();
+        final RDFWriterBuilder builder = RDFWriter.create().source(graph).context(context);
+        if (lang != null)
+            builder.lang(lang);
+        else
+            builder.format(format);
+        builder.build().output(out);
+        return out.count;
+    }
+
+    private static long write(final DatasetGraph dsg, final Lang lang, final RDFFormat format, final Context context) {
+        final CountingOutputStream out = new CountingOutputStream();
+        final RDFWriterBuilder builder = RDFWriter.create().source(dsg).context(context);
+        if (lang != null)
+            builder.lang(lang);
+        else
+            builder.format(format);
+        builder.build().output(out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long sttl(final GraphState s, final Triples t) {
+        t.triples += s.graph.size();
+        return write(s.graph, s.sttl, null, s.context);
+    }
+
+    @Benchmark
+    public long sttlOnlyWriteUsedPrefixes(final GraphState s, final Triples t) {
+        t.triples += s.graph.size();
+        return write(s.graph, s.sttl, null, s.usedPrefixesContext);
+    }
+
+    @Benchmark
+    public long sttlFragmentCache(final FragmentCacheState s, final Triples t) {
+        t.triples += s.graph.size();
+        return write(s.graph, s.sttl, null, s.context);
+    }
+
+    @Benchmark
+    public long jenaTurtle(final GraphState s, final Triples t) {
+        t.triples += s.graph.size();
+        return write(s.graph, null, RDFFormat.TURTLE_PRETTY, s.context);
+    }
+
+    @Benchmark
+    public long strig(final DatasetState s, final Triples t) {
+        t.triples += s.nbQuads;
+        return write(s.dsg, s.strig, null, s.context);
+    }
+
+    @Benchmark
+    public long jenaTriG(final DatasetState s, final Triples t) {
+        t.triples += s.nbQuads;
+        return write(s.dsg, null, RDFFormat.TRIG_PRETTY, s.context);
+    }
+}
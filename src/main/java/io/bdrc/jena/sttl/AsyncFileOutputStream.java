@@ -0,0 +1,319 @@
+package io.bdrc.jena.sttl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.util.Context;
+
+/**
+* Output stream to a file, written by a background thread so that the
+* rendering of large files doesn't wait for the disk.
+*
+* The bytes are put in direct buffers, each full buffer is written to a
+* FileChannel by the background thread while the writer fills the next one.
+* The file is written as a temporary file in the directory of the target,
+* renamed over the target by {@link #commit()}: readers of the target never
+* see a partial file. {@link #close()} without {@link #commit()} removes the
+* temporary file.
+*
+* The static write methods use the options of the writer context, see
+* {@link SttlConfig}: <code>fileBufferSize</code> for the size of the buffers
+* and <code>forceFileOutput</code> to sync the file to the disk before the
+* rename.
+*/
+public final class AsyncFileOutputStream extends OutputStream {
+
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final int MIN_BUFFER_SIZE = 1 << 10;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // tells the background thread to stop
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Path target;
+    private final Path tmp;
+    private final FileChannel channel;
+    private final boolean force;
+    // buffers to write, and buffers written
+    private final BlockingQueue<ByteBuffer> filled;
+    private final BlockingQueue<ByteBuffer> free;
+    private final Thread flusher;
+    private volatile IOException failure = null;
+    private ByteBuffer current;
+    private boolean closed = false;
+
+    /**
+    * @param target
+    * the file
+    * @param bufferSize
+    * the size of each buffer
+    * @param nbBuffers
+    * the number of buffers, at least 2
+    * @param force
+    * sync the file to the disk before renaming it
+    * @throws IOException
+    * if the temporary file can't be created
+    */
+    public AsyncFileOutputStream(final Path target, final int bufferSize, final int nbBuffers, final boolean force) throws IOException {
+        this.target = target;
+        this.force = force;
+        final int n = Math.max(nbBuffers, 2);
+        final int size = Math.max(bufferSize, MIN_BUFFER_SIZE);
+        this.filled = new ArrayBlockingQueue<>(n + 1);
+        this.free = new ArrayBlockingQueue<>(n);
+        this.current = ByteBuffer.allocateDirect(size);
+        for (int i = 1; i < n; i++)
+            this.free.add(ByteBuffer.allocateDirect(size));
+        // not Files.createTempFile, which makes the file only readable by its
+        // owner: the new file gets the usual permissions
+        final Path dir = target.toAbsolutePath().getParent();
+        Path tmp;
+        FileChannel channel;
+        while (true) {
+            tmp = dir.resolve(".sttl-" + target.getFileName() + "." + Long.toUnsignedString(RANDOM.nextLong(), 36) + ".tmp");
+            try {
+                channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+        this.tmp = tmp;
+        this.channel = channel;
+        this.flusher = new Thread(this::flushLoop, "sttl-file-output");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+    * Double buffered stream with the default buffer size.
+    */
+    public AsyncFileOutputStream(final Path target) throws IOException {
+        this(target, DEFAULT_BUFFER_SIZE, 2, false);
+    }
+
+    // the background thread
+    private void flushLoop() {
+        while (true) {
+            final ByteBuffer b;
+            try {
+                b = this.filled.take();
+            } catch (InterruptedException e) {
+                this.failure = new InterruptedIOException();
+                return;
+            }
+            if (b == END)
+                return;
+            if (this.failure == null) {
+                try {
+                    while (b.hasRemaining())
+                        this.channel.write(b);
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+            }
+            // after a failure, the buffers go back without being written so
+            // that the writer doesn't wait
+            b.clear();
+            this.free.add(b);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException e = this.failure;
+        if (e != null)
+            throw new IOException("can't write " + this.tmp, e);
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.closed)
+            throw new IOException("stream closed");
+    }
+
+    // gives the current buffer to the background thread and takes a free one
+    private void handOff() throws IOException {
+        checkFailure();
+        this.current.flip();
+        try {
+            this.filled.put(this.current);
+            this.current = this.free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        checkOpen();
+        if (!this.current.hasRemaining())
+            handOff();
+        this.current.put((byte) b);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (!this.current.hasRemaining())
+                handOff();
+            final int n = Math.min(len, this.current.remaining());
+            this.current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+    * Gives the bytes written so far to the background thread, without waiting
+    * for them to be written.
+    */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (this.current.position() > 0)
+            handOff();
+    }
+
+    // stops the background thread once all the buffers are written
+    private void stopFlusher() throws IOException {
+        try {
+            this.filled.put(END);
+            this.flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+    * Waits for all the bytes to be written and renames the file over the
+    * target. The stream is then closed.
+    *
+    * @throws IOException
+    * if the file can't be written or renamed, the target is then unchanged
+    */
+    public void commit() throws IOException {
+        checkOpen();
+        flush();
+        this.closed = true;
+        boolean done = false;
+        try {
+            stopFlusher();
+            checkFailure();
+            if (this.force)
+                this.channel.force(true);
+            this.channel.close();
+            // a replaced file keeps its permissions
+            if (Files.exists(this.target)) {
+                try {
+                    Files.setPosixFilePermissions(this.tmp, Files.getPosixFilePermissions(this.target));
+                } catch (UnsupportedOperationException e) {
+                    // not a POSIX file system
+                }
+            }
+            try {
+                Files.move(this.tmp, this.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(this.tmp, this.target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                this.channel.close();
+                Files.deleteIfExists(this.tmp);
+            }
+        }
+    }
+
+    /**
+    * Closes the stream. If {@link #commit()} wasn't called, the temporary file
+    * is removed and the target is unchanged.
+    */
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        try {
+            stopFlusher();
+        } finally {
+            this.channel.close();
+            Files.deleteIfExists(this.tmp);
+        }
+    }
+
+    /**
+    * Writes a file through an AsyncFileOutputStream, the target is only
+    * replaced if the write succeeds.
+    *
+    * @param target
+    * the file
+    * @param write
+    * writes the output in the stream it's given
+    * @param context
+    * the context of the writer, for the file options
+    * @throws IOException
+    * if the file can't be written
+    */
+    public static void write(final Path target, final Consumer<OutputStream> write, final Context context) throws IOException {
+        final SttlConfig config = SttlConfig.of(context);
+        try (AsyncFileOutputStream out = new AsyncFileOutputStream(target, config.fileBufferSize, 2, config.forceFileOutput)) {
+            write.accept(out);
+            out.commit();
+        }
+    }
+
+    /**
+    * Writes the sorted Turtle of a graph in a file.
+    *
+    * @param target
+    * the file
+    * @param graph
+    * the graph
+    * @param context
+    * the context of the writer, see {@link STTLWriter}
+    * @throws IOException
+    * if the file can't be written
+    */
+    public static void write(final Path target, final Graph graph, final Context context) throws IOException {
+        final RDFWriter writer = RDFWriter.create().source(graph).context(context).lang(STTLWriter.registerWriter()).build();
+        write(target, writer::output, context);
+    }
+
+    /**
+    * Writes the sorted TriG of a dataset in a file.
+    *
+    * @param target
+    * the file
+    * @param dsg
+    * the dataset
+    * @param context
+    * the context of the writer, see {@link STriGWriter}
+    * @throws IOException
+    * if the file can't be written
+    */
+    public static void write(final Path target, final DatasetGraph dsg, final Context context) throws IOException {
+        final RDFWriter writer = RDFWriter.create().source(dsg).context(context).lang(STriGWriter.registerWriter()).build();
+        write(target, writer::output, context);
+    }
+
+}
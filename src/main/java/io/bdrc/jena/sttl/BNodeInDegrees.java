@@ -0,0 +1,107 @@
+package io.bdrc.jena.sttl;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * In-degree table of blank nodes, built in one scan of a graph or dataset.
+ *
+ * For each blank node used as an object, records whether it is the object
+ * of 1 or more than 1 triple (2 means "more than 1"), blank nodes that are
+ * never used as objects have an in-degree of 0. The table is an open-addressing
+ * hash table with a byte per entry, so it stays small on bnode-heavy graphs.
+ */
+final class BNodeInDegrees {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private Node[] keys;
+    private byte[] counts;
+    private int size = 0;
+
+    BNodeInDegrees() {
+        this.keys = new Node[MIN_CAPACITY];
+        this.counts = new byte[MIN_CAPACITY];
+    }
+
+    /**
+     * @param graph
+     * the graph to index
+     * @return
+     * the in-degrees of the blank nodes of the graph
+     */
+    static BNodeInDegrees of(final Graph graph) {
+        final BNodeInDegrees res = new BNodeInDegrees();
+        final ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (iter.hasNext()) {
+                final Node o = iter.next().getObject();
+                if (o.isBlank())
+                    res.inc(o);
+            }
+        } finally {
+            iter.close();
+        }
+        return res;
+    }
+
+    private static int hash(final Node n) {
+        // labels are often numbered, with consecutive hash codes that would
+        // fill runs of slots and make the probes long
+        final int h = n.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(final Node n) {
+        final int mask = this.keys.length - 1;
+        int i = hash(n) & mask;
+        while (this.keys[i] != null && !this.keys[i].equals(n))
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * Records one more incoming link for a node, saturating at 2.
+     */
+    void inc(final Node n) {
+        int i = slot(n);
+        if (this.keys[i] == null) {
+            if ((this.size + 1) * 4 > this.keys.length * 3) {
+                grow();
+                i = slot(n);
+            }
+            this.keys[i] = n;
+            this.size++;
+        }
+        if (this.counts[i] < 2)
+            this.counts[i]++;
+    }
+
+    /**
+     * @return
+     * 0, 1 or 2 (where 2 really means "more than 1")
+     */
+    int get(final Node n) {
+        return this.counts[slot(n)];
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private void grow() {
+        final Node[] oldKeys = this.keys;
+        final byte[] oldCounts = this.counts;
+        this.keys = new Node[oldKeys.length * 2];
+        this.counts = new byte[oldKeys.length * 2];
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null)
+                continue;
+            final int i = slot(oldKeys[j]);
+            this.keys[i] = oldKeys[j];
+            this.counts[i] = oldCounts[j];
+        }
+    }
+}
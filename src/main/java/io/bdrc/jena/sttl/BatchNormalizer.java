@@ -0,0 +1,323 @@
+package io.bdrc.jena.sttl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.Symbol;
+
+/**
+* Normalizes all the .ttl and .trig files of a directory tree with the sorted
+* writers, in one JVM.
+*
+* The files are parsed and written by a pool of threads, the parse of the next
+* files going on while the current ones are written. At most twice as many
+* files as threads are in memory. All the writes share the same
+* {@link SttlConfig} and {@link NodeTextCache}. A file is only rewritten
+* (through a temporary file renamed over it) if its bytes change: the output
+* is rendered in memory and compared with the bytes that were parsed.
+* Relative IRIs are kept relative, without adding a base directive unless
+* writeBase is set to true.
+*
+* From the command line:
+* <pre>
+* java -cp ... io.bdrc.jena.sttl.BatchNormalizer [--threads N] [--set name=value]... dir...
+* </pre>
+* where the names are the symbols of the writer without their namespace, for
+* instance <code>--set onlyWriteUsedPrefixes=true</code>.
+*/
+public final class BatchNormalizer {
+
+    private static final int NODE_TEXT_CACHE_SIZE = 1 << 16;
+
+    // base of the parses and of the writes, so that relative IRIs stay relative
+    // and the output doesn't depend on where the files are
+    static final String BASE = "http://sttl.invalid/";
+
+    private final Context context;
+    private final int nbThreads;
+
+    /**
+    * Failure to normalize a file.
+    */
+    public static final class Failure {
+        public final Path path;
+        public final Throwable cause;
+
+        Failure(final Path path, final Throwable cause) {
+            this.path = path;
+            this.cause = cause;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + cause;
+        }
+    }
+
+    /**
+    * What a run did.
+    */
+    public static final class Result {
+        private final LongAdder files = new LongAdder();
+        private final LongAdder rewritten = new LongAdder();
+        private final LongAdder triples = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+        private long nanos = 0;
+
+        /** @return the number of files read, including the failures */
+        public long getFiles() {
+            return files.sum();
+        }
+
+        /** @return the number of files whose bytes changed */
+        public long getRewritten() {
+            return rewritten.sum();
+        }
+
+        /** @return the number of triples and quads written */
+        public long getTriples() {
+            return triples.sum();
+        }
+
+        /** @return the number of bytes read */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /** @return the files that couldn't be normalized */
+        public List<Failure> getFailures() {
+            return new ArrayList<>(failures);
+        }
+
+        /** @return the duration of the run, in nanoseconds */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format("%d files (%d rewritten, %d failed) in %.1f s: %.0f files/s, %.0f triples/s, %.1f MB/s",
+                    getFiles(), getRewritten(), failures.size(), seconds, getFiles() / seconds, getTriples() / seconds,
+                    getBytes() / seconds / 1e6);
+        }
+    }
+
+    // a parsed file, waiting to be written
+    private static final class Parsed {
+        final Path path;
+        final byte[] bytes;
+        final Graph graph;
+        final DatasetGraph dsg;
+
+        Parsed(final Path path, final byte[] bytes, final Graph graph, final DatasetGraph dsg) {
+            this.path = path;
+            this.bytes = bytes;
+            this.graph = graph;
+            this.dsg = dsg;
+        }
+    }
+
+    /**
+    * @param context
+    * the context of the writers, copied
+    * @param nbThreads
+    * the number of threads parsing and writing
+    */
+    public BatchNormalizer(final Context context, final int nbThreads) {
+        this.context = (context == null) ? new Context() : context.copy();
+        if (!this.context.isDefined(Symbol.create(STTLWriter.SYMBOLS_NS + "nodeTextCache")))
+            this.context.set(Symbol.create(STTLWriter.SYMBOLS_NS + "nodeTextCache"), new NodeTextCache(NODE_TEXT_CACHE_SIZE));
+        // relative IRIs are kept relative, the base used for them isn't written
+        if (!this.context.isDefined(Symbol.create(STTLWriter.SYMBOLS_NS + "writeBase")))
+            this.context.set(Symbol.create(STTLWriter.SYMBOLS_NS + "writeBase"), false);
+        // options read once for all the writes
+        this.context.set(SttlConfig.SYMBOL, SttlConfig.fromContext(this.context));
+        this.nbThreads = Math.max(1, nbThreads);
+        STTLWriter.registerWriter();
+        STriGWriter.registerWriter();
+    }
+
+    private static Lang langOf(final Path path) {
+        final String name = path.getFileName().toString();
+        if (name.endsWith(".ttl"))
+            return Lang.TURTLE;
+        if (name.endsWith(".trig"))
+            return Lang.TRIG;
+        return null;
+    }
+
+    private static Parsed parse(final Path path) throws IOException {
+        final byte[] bytes = Files.readAllBytes(path);
+        final Lang lang = langOf(path);
+        final RDFParser parser = RDFParser.source(new ByteArrayInputStream(bytes)).lang(lang).base(BASE).build();
+        if (lang == Lang.TRIG) {
+            final DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+            parser.parse(dsg);
+            return new Parsed(path, bytes, null, dsg);
+        }
+        final Graph graph = GraphFactory.createDefaultGraph();
+        parser.parse(graph);
+        return new Parsed(path, bytes, graph, null);
+    }
+
+    // returns true if the file changed
+    private boolean write(final Parsed parsed, final Result result) throws IOException {
+        final RDFWriter writer;
+        if (parsed.dsg != null) {
+            writer = RDFWriter.create().source(parsed.dsg).context(context).lang(STriGWriter.lang).base(BASE).build();
+            result.triples.add(parsed.dsg.stream().count());
+        } else {
+            writer = RDFWriter.create().source(parsed.graph).context(context).lang(STTLWriter.lang).base(BASE).build();
+            result.triples.add(parsed.graph.size());
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(parsed.bytes.length + 1024);
+        writer.output(out);
+        final byte[] normalized = out.toByteArray();
+        if (Arrays.equals(parsed.bytes, normalized))
+            return false;
+        final Path tmp = Files.createTempFile(parsed.path.toAbsolutePath().getParent(), ".sttl-", ".tmp");
+        try {
+            Files.write(tmp, normalized);
+            // temporary files are only readable by their owner
+            try {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(parsed.path));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system
+            }
+            try {
+                Files.move(tmp, parsed.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, parsed.path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof UncheckedIOException) && e.getCause() != null)
+            e = e.getCause();
+        return e;
+    }
+
+    /**
+    * Normalizes the .ttl and .trig files of the directory trees.
+    *
+    * @param roots
+    * the directories (or files)
+    * @return
+    * the counts of the run and the failures
+    * @throws IOException
+    * if a directory can't be walked
+    * @throws InterruptedException
+    * if interrupted while waiting for the files
+    */
+    public Result run(final List<Path> roots) throws IOException, InterruptedException {
+        final Result result = new Result();
+        final long start = System.nanoTime();
+        final ExecutorService pool = Executors.newFixedThreadPool(nbThreads);
+        final int maxInFlight = 2 * nbThreads;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            for (final Path root : roots) {
+                try (Stream<Path> s = Files.walk(root)) {
+                    final Iterator<Path> it = s.filter(p -> langOf(p) != null && Files.isRegularFile(p)).iterator();
+                    while (it.hasNext()) {
+                        final Path path = it.next();
+                        inFlight.acquire();
+                        CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return parse(path);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }, pool).thenApplyAsync(parsed -> {
+                            result.bytes.add(parsed.bytes.length);
+                            try {
+                                return write(parsed, result);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }, pool).whenComplete((changed, e) -> {
+                            result.files.increment();
+                            if (e != null)
+                                result.failures.add(new Failure(path, unwrap(e)));
+                            else if (changed)
+                                result.rewritten.increment();
+                            inFlight.release();
+                        });
+                    }
+                }
+            }
+            inFlight.acquire(maxInFlight);
+        } finally {
+            pool.shutdown();
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int nbThreads = Runtime.getRuntime().availableProcessors();
+        final Context context = new Context();
+        final List<Path> roots = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                nbThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--set") && i + 1 < args.length) {
+                final String[] kv = args[++i].split("=", 2);
+                final String value = (kv.length > 1) ? kv[1] : "true";
+                final Symbol symbol = Symbol.create(STTLWriter.SYMBOLS_NS + kv[0]);
+                if (value.equals("true") || value.equals("false"))
+                    context.set(symbol, Boolean.parseBoolean(value));
+                else
+                    context.set(symbol, value);
+            } else {
+                roots.add(Paths.get(args[i]));
+            }
+        }
+        if (roots.isEmpty()) {
+            System.err.println("usage: BatchNormalizer [--threads N] [--set name=value]... dir...");
+            System.exit(2);
+        }
+        final Result result = new BatchNormalizer(context, nbThreads).run(roots);
+        final List<Failure> failures = result.getFailures();
+        Collections.sort(failures, (f1, f2) -> f1.path.compareTo(f2.path));
+        for (final Failure f : failures)
+            System.err.println(f);
+        System.out.println(result);
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+}
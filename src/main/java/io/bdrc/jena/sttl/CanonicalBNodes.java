@@ -0,0 +1,339 @@
+package io.bdrc.jena.sttl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.out.NodeFmtLib;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Canonical hashes and labels of the blank nodes of a graph or dataset,
+ * in the style of RDFC-1.0.
+ *
+ * Each blank node first gets the hash of its first degree quads (RDFC-1.0
+ * "hash first degree quads"). The hashes are then refined iteratively, each
+ * new hash covering the previous one and the hashes of the neighbours, until
+ * the number of distinct hashes stops growing. Each iteration is linear in the
+ * number of quads involving blank nodes.
+ *
+ * Refinement can leave blank nodes with the same hash. The ties are then
+ * broken by individualization, instead of the costly "hash N-degree quads"
+ * step of RDFC-1.0, in each connected component of blank nodes: one node of
+ * the tied class with the smallest hash is given a new hash and the component
+ * is refined again, until all the hashes of the component are distinct. In a
+ * tree of blank nodes (the general case in Turtle records) the tied nodes are
+ * interchangeable and any of them is taken. In a component with cycles, where
+ * refinement can tie nodes that are not interchangeable (two 3-cycles and a
+ * 6-cycle), each of them is tried and the one giving the smallest hashes to
+ * the component is taken. The components that still have the same hashes are
+ * interchangeable, they are numbered in any order to tell their nodes apart.
+ * The order, and the output, never depend on the labels of the blank nodes.
+ */
+final class CanonicalBNodes implements Comparator<Node> {
+
+    private static final String SELF = "_:a";
+    private static final String OTHER = "_:z";
+    private static final String INDIVIDUALIZED = "!";
+
+    private final Map<Node, String> hashes;
+    private final Map<Node, Integer> indexes;
+
+    private CanonicalBNodes(final Map<Node, List<Quad>> bnodeQuads) {
+        this.hashes = computeHashes(bnodeQuads);
+        final List<Node> sorted = new ArrayList<>(this.hashes.keySet());
+        // interchangeable nodes get consecutive indexes, in any order
+        Collections.sort(sorted, this::compareHashes);
+        this.indexes = new HashMap<>();
+        for (int i = 0; i < sorted.size(); i++)
+            this.indexes.put(sorted.get(i), i);
+    }
+
+    /**
+     * @param graph
+     * the graph whose blank nodes are labeled
+     * @return
+     * the canonical hashes and labels of the blank nodes of the graph
+     */
+    static CanonicalBNodes of(final Graph graph) {
+        final Map<Node, List<Quad>> bnodeQuads = new HashMap<>();
+        final ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while (iter.hasNext())
+                addQuad(bnodeQuads, Quad.create(Quad.defaultGraphIRI, iter.next()));
+        } finally {
+            iter.close();
+        }
+        return new CanonicalBNodes(bnodeQuads);
+    }
+
+    /**
+     * @param dsg
+     * the dataset whose blank nodes are labeled
+     * @return
+     * the canonical hashes and labels of the blank nodes of the dataset
+     */
+    static CanonicalBNodes of(final DatasetGraph dsg) {
+        final Map<Node, List<Quad>> bnodeQuads = new HashMap<>();
+        final Iterator<Quad> iter = dsg.find(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
+        while (iter.hasNext()) {
+            final Quad q = iter.next();
+            addQuad(bnodeQuads, q.isDefaultGraph() ? Quad.create(Quad.defaultGraphIRI, q.asTriple()) : q);
+        }
+        return new CanonicalBNodes(bnodeQuads);
+    }
+
+    // adds the quad once to each distinct blank node it contains
+    private static void addQuad(final Map<Node, List<Quad>> bnodeQuads, final Quad q) {
+        final Node[] terms = { q.getGraph(), q.getSubject(), q.getPredicate(), q.getObject() };
+        for (int i = 0; i < terms.length; i++) {
+            if (!terms[i].isBlank())
+                continue;
+            boolean seen = false;
+            for (int j = 0; j < i; j++)
+                seen |= terms[j].equals(terms[i]);
+            if (!seen)
+                bnodeQuads.computeIfAbsent(terms[i], x -> new ArrayList<>()).add(q);
+        }
+    }
+
+    private static String term(final Node n, final Node self, final Map<Node, String> hashes) {
+        if (n.isBlank()) {
+            if (n.equals(self))
+                return SELF;
+            return (hashes == null) ? OTHER : "_:" + hashes.get(n);
+        }
+        if (Quad.isDefaultGraph(n))
+            return "";
+        return NodeFmtLib.strNT(n);
+    }
+
+    // the hash of a blank node and of the quads it appears in, where the
+    // other blank nodes are replaced by their current hashes (or by _:z if
+    // hashes is null)
+    private static String hash(final Node n, final List<Quad> quads, final Map<Node, String> hashes) {
+        final List<String> lines = new ArrayList<>(quads.size());
+        for (final Quad q : quads) {
+            lines.add(term(q.getSubject(), n, hashes) + ' ' + term(q.getPredicate(), n, hashes) + ' '
+                    + term(q.getObject(), n, hashes) + ' ' + term(q.getGraph(), n, hashes) + " .\n");
+        }
+        Collections.sort(lines);
+        final StringBuilder sb = new StringBuilder();
+        if (hashes != null)
+            sb.append(hashes.get(n)).append('\n');
+        for (final String line : lines)
+            sb.append(line);
+        return DigestUtils.sha256Hex(sb.toString());
+    }
+
+    private static Map<Node, String> computeHashes(final Map<Node, List<Quad>> bnodeQuads) {
+        final Map<Node, String> hashes = new HashMap<>();
+        for (final Map.Entry<Node, List<Quad>> e : bnodeQuads.entrySet())
+            hashes.put(e.getKey(), hash(e.getKey(), e.getValue(), null));
+        refine(bnodeQuads.keySet(), bnodeQuads, hashes);
+        if (countDistinct(hashes.values()) == hashes.size())
+            return hashes;
+        // components with the same sorted hashes, once their ties are broken
+        final Map<String, List<List<Node>>> sameHashes = new HashMap<>();
+        for (final Component c : components(bnodeQuads)) {
+            individualize(c, bnodeQuads, hashes);
+            sameHashes.computeIfAbsent(sortedHashes(c.nodes, hashes), x -> new ArrayList<>()).add(c.nodes);
+        }
+        for (final List<List<Node>> components : sameHashes.values()) {
+            if (components.size() == 1)
+                continue;
+            for (int i = 0; i < components.size(); i++) {
+                for (final Node n : components.get(i))
+                    hashes.put(n, hashes.get(n) + '.' + i);
+            }
+        }
+        return hashes;
+    }
+
+    // refines the hashes of the nodes until the number of distinct hashes
+    // stops growing, the quads of the nodes only involving the nodes
+    private static void refine(final Collection<Node> nodes, final Map<Node, List<Quad>> bnodeQuads, final Map<Node, String> hashes) {
+        int nbDistinct = countDistinct(nodes, hashes);
+        while (nbDistinct < nodes.size()) {
+            final Map<Node, String> newHashes = new HashMap<>();
+            for (final Node n : nodes)
+                newHashes.put(n, hash(n, bnodeQuads.get(n), hashes));
+            hashes.putAll(newHashes);
+            final int newNbDistinct = countDistinct(nodes, hashes);
+            if (newNbDistinct == nbDistinct)
+                break;
+            nbDistinct = newNbDistinct;
+        }
+    }
+
+    // breaks the ties of a component, see class comment
+    private static void individualize(final Component c, final Map<Node, List<Quad>> bnodeQuads, final Map<Node, String> hashes) {
+        while (countDistinct(c.nodes, hashes) < c.nodes.size()) {
+            // the tied class with the smallest hash
+            final Map<String, List<Node>> classes = new TreeMap<>();
+            for (final Node n : c.nodes)
+                classes.computeIfAbsent(hashes.get(n), x -> new ArrayList<>()).add(n);
+            List<Node> tied = null;
+            for (final List<Node> nodes : classes.values()) {
+                if (nodes.size() > 1) {
+                    tied = nodes;
+                    break;
+                }
+            }
+            final List<Node> candidates = c.cyclic ? tied : tied.subList(0, 1);
+            Map<Node, String> best = null;
+            String bestHashes = null;
+            for (final Node candidate : candidates) {
+                final Map<Node, String> candidateHashes = new HashMap<>();
+                for (final Node n : c.nodes)
+                    candidateHashes.put(n, hashes.get(n));
+                candidateHashes.put(candidate, DigestUtils.sha256Hex(hashes.get(candidate) + INDIVIDUALIZED));
+                refine(c.nodes, bnodeQuads, candidateHashes);
+                // equal hashes come from interchangeable candidates
+                final String sorted = (candidates.size() == 1) ? null : sortedHashes(c.nodes, candidateHashes);
+                if (best == null || sorted.compareTo(bestHashes) < 0) {
+                    best = candidateHashes;
+                    bestHashes = sorted;
+                }
+            }
+            hashes.putAll(best);
+        }
+    }
+
+    private static String sortedHashes(final List<Node> nodes, final Map<Node, String> hashes) {
+        final List<String> sorted = new ArrayList<>(nodes.size());
+        for (final Node n : nodes)
+            sorted.add(hashes.get(n));
+        Collections.sort(sorted);
+        return String.join(" ", sorted);
+    }
+
+    // a connected component of blank nodes, cyclic if it has more links
+    // between the blank nodes than a tree
+    private static final class Component {
+        final List<Node> nodes = new ArrayList<>();
+        int nbLinks = 0;
+        boolean cyclic = false;
+    }
+
+    private static Collection<Component> components(final Map<Node, List<Quad>> bnodeQuads) {
+        final Map<Node, Node> parents = new HashMap<>();
+        for (final Node n : bnodeQuads.keySet())
+            parents.put(n, n);
+        final List<Node[]> links = new ArrayList<>();
+        for (final Map.Entry<Node, List<Quad>> e : bnodeQuads.entrySet()) {
+            for (final Quad q : e.getValue()) {
+                // the quad is in the lists of each of its blank nodes, its
+                // links are taken from the first one
+                final Node[] terms = { q.getGraph(), q.getSubject(), q.getObject() };
+                Node first = null;
+                for (final Node t : terms) {
+                    if (!t.isBlank())
+                        continue;
+                    if (first == null) {
+                        first = t;
+                        if (!first.equals(e.getKey()))
+                            break;
+                    } else if (!t.equals(first)) {
+                        links.add(new Node[] { first, t });
+                        final Node r1 = root(parents, first);
+                        final Node r2 = root(parents, t);
+                        if (!r1.equals(r2))
+                            parents.put(r1, r2);
+                    }
+                }
+            }
+        }
+        final Map<Node, Component> components = new HashMap<>();
+        for (final Node n : bnodeQuads.keySet())
+            components.computeIfAbsent(root(parents, n), x -> new Component()).nodes.add(n);
+        for (final Node[] link : links)
+            components.get(root(parents, link[0])).nbLinks++;
+        for (final Component c : components.values())
+            c.cyclic = c.nbLinks >= c.nodes.size();
+        return components.values();
+    }
+
+    private static Node root(final Map<Node, Node> parents, Node n) {
+        Node p;
+        while (!(p = parents.get(n)).equals(n)) {
+            final Node gp = parents.get(p);
+            parents.put(n, gp);
+            n = gp;
+        }
+        return n;
+    }
+
+    private static int countDistinct(final Collection<String> hashes) {
+        final Set<String> distinct = new HashSet<>(hashes);
+        return distinct.size();
+    }
+
+    private static int countDistinct(final Collection<Node> nodes, final Map<Node, String> hashes) {
+        final Set<String> distinct = new HashSet<>();
+        for (final Node n : nodes)
+            distinct.add(hashes.get(n));
+        return distinct.size();
+    }
+
+    private int compareHashes(final Node n1, final Node n2) {
+        final String h1 = hashes.get(n1);
+        final String h2 = hashes.get(n2);
+        if (h1 == null || h2 == null) {
+            if (h1 != null)
+                return -1;
+            if (h2 != null)
+                return 1;
+        } else {
+            // the same hash for interchangeable nodes, see class comment
+            return h1.compareTo(h2);
+        }
+        // not in the graph
+        return n1.getBlankNodeLabel().compareTo(n2.getBlankNodeLabel());
+    }
+
+    /**
+     * @return
+     * the canonical hash of the blank node, null if it's not in the graph
+     */
+    String getHash(final Node n) {
+        return hashes.get(n);
+    }
+
+    /**
+     * @return
+     * the canonical label of the blank node (without "_:")
+     */
+    String getLabel(final Node n) {
+        final Integer i = indexes.get(n);
+        if (i == null)
+            return "b" + n.getBlankNodeLabel();
+        return "c14n" + i;
+    }
+
+    /**
+     * Compares two blank nodes in canonical order.
+     */
+    @Override
+    public int compare(final Node n1, final Node n2) {
+        final Integer i1 = indexes.get(n1);
+        final Integer i2 = indexes.get(n2);
+        if (i1 != null && i2 != null)
+            return Integer.compare(i1, i2);
+        return compareHashes(n1, n2);
+    }
+}
@@ -1,9 +1,14 @@
 package io.bdrc.jena.sttl;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.BiConsumer;
 import java.util.stream.Stream;
 
@@ -12,15 +17,143 @@ import org.apache.jena.riot.system.PrefixEntry;
 import org.apache.jena.riot.system.PrefixMap;
 import org.apache.jena.shared.PrefixMapping;
 
+/**
+* Prefix map recording the prefixes used to abbreviate IRIs.
+*
+* IRIs are abbreviated with the namespace ending at their last '#' or '/'
+* if there is one, as PrefixMapStd does, or else with the longest matching
+* namespace, found in a trie of the namespaces. The prefixes used are
+* recorded in a bitset and the abbreviations of the last IRIs are cached.
+* It can be used from several threads.
+*/
 public class CheckedPrefixMap implements PrefixMap {
-    
+
+    /**
+    * Maximum number of abbreviations cached, the cache is emptied when full.
+    */
+    public static int abbrevCacheSize = 1 << 14;
+
+    // marker of the IRIs that can't be abbreviated in the cache
+    private static final Pair<String, String> NO_ABBREV = Pair.create(null, null);
+
     public final PrefixMap pm;
-    public final Map<String,Boolean> usedPrefixes = new HashMap<>(); 
-    
+
+    // rebuilt when the mapping changes
+    private volatile Index index = null;
+    private final Map<String, Pair<String, String>> abbrevCache = new ConcurrentHashMap<>();
+
+    private static final class TrieNode {
+        final Map<Character, TrieNode> next = new HashMap<>();
+        int prefix = -1;
+    }
+
+    private static final class Index {
+        // sorted prefixes, the bitset uses their indexes
+        final List<String> prefixes;
+        final String[] namespaceOf;
+        final Map<String, Integer> prefixIndexes = new HashMap<>();
+        final Map<String, Integer> namespaces = new HashMap<>();
+        final TrieNode trie = new TrieNode();
+        final AtomicLongArray used;
+
+        Index(final Map<String, String> mapping) {
+            this.prefixes = new ArrayList<>(mapping.keySet());
+            Collections.sort(this.prefixes);
+            this.namespaceOf = new String[this.prefixes.size()];
+            this.used = new AtomicLongArray((this.prefixes.size() + 63) >>> 6);
+            for (int i = 0; i < this.prefixes.size(); i++) {
+                final String prefix = this.prefixes.get(i);
+                final String ns = mapping.get(prefix);
+                this.namespaceOf[i] = ns;
+                this.prefixIndexes.put(prefix, i);
+                // the first prefix in order for namespaces having more than one
+                if (this.namespaces.putIfAbsent(ns, i) != null)
+                    continue;
+                TrieNode n = this.trie;
+                for (int j = 0; j < ns.length(); j++)
+                    n = n.next.computeIfAbsent(ns.charAt(j), x -> new TrieNode());
+                n.prefix = i;
+            }
+        }
+
+        void markUsed(final int i) {
+            final int w = i >>> 6;
+            final long bit = 1L << i;
+            long old;
+            while (((old = this.used.get(w)) & bit) == 0 && !this.used.compareAndSet(w, old, old | bit))
+                ;
+        }
+
+        boolean isUsed(final int i) {
+            return (this.used.get(i >>> 6) & (1L << i)) != 0;
+        }
+
+        // index of the prefix of the longest namespace starting uriStr, -1 if none
+        int longestMatch(final String uriStr) {
+            int res = -1;
+            TrieNode n = this.trie;
+            for (int j = 0; j < uriStr.length(); j++) {
+                n = n.next.get(uriStr.charAt(j));
+                if (n == null)
+                    break;
+                if (n.prefix >= 0)
+                    res = n.prefix;
+            }
+            return res;
+        }
+    }
+
     public CheckedPrefixMap(final PrefixMap pm) {
         this.pm = pm;
     }
 
+    private Index getIndex() {
+        Index res = this.index;
+        if (res == null) {
+            synchronized (this) {
+                res = this.index;
+                if (res == null) {
+                    res = new Index(this.pm.getMapping());
+                    this.index = res;
+                }
+            }
+        }
+        return res;
+    }
+
+    // keeps the used prefixes that are still in the mapping
+    private synchronized void mappingChanged() {
+        final Index old = this.index;
+        this.index = null;
+        this.abbrevCache.clear();
+        if (old == null)
+            return;
+        final Index res = getIndex();
+        for (int i = 0; i < old.prefixes.size(); i++) {
+            final Integer j = res.prefixIndexes.get(old.prefixes.get(i));
+            if (j != null && old.isUsed(i))
+                res.markUsed(j);
+        }
+    }
+
+    /**
+    * @return
+    * true if the prefix has been used to abbreviate an IRI
+    */
+    public final boolean isUsed(final String prefix) {
+        final Index idx = getIndex();
+        final Integer i = idx.prefixIndexes.get(prefix);
+        return i != null && idx.isUsed(i);
+    }
+
+    // records a prefix used outside of abbrev
+    final void markUsed(final String prefix) {
+        final Index idx = getIndex();
+        final Integer i = idx.prefixIndexes.get(prefix);
+        if (i != null)
+            idx.markUsed(i);
+    }
+
     @Override
     public final String get(final String prefix) {
         return this.pm.get(prefix);
@@ -30,11 +163,11 @@ public class CheckedPrefixMap implements PrefixMap {
     public final Map<String, String> getMapping() {
         return this.pm.getMapping();
     }
-    
+
     public final Map<String, String> getUsedMappingCopy() {
         final Map<String, String> res = new HashMap<>();
         for (Entry<String, String> e : this.pm.getMapping().entrySet()) {
-            if (usedPrefixes.containsKey(e.getKey()))
+            if (isUsed(e.getKey()))
                 res.put(e.getKey(), e.getValue());
         }
         return res;
@@ -58,31 +191,37 @@ public class CheckedPrefixMap implements PrefixMap {
     @Override
     public final void add(final String prefix, final String iriString) {
         this.pm.add(prefix, iriString);
+        mappingChanged();
     }
 
     @Override
     public final void putAll(final PrefixMap pmap) {
         this.pm.putAll(pmap);
+        mappingChanged();
     }
 
     @Override
     public final void putAll(final PrefixMapping pmap) {
         this.pm.putAll(pmap);
+        mappingChanged();
     }
 
     @Override
     public final void putAll(final Map<String, String> mapping) {
         this.pm.putAll(mapping);
+        mappingChanged();
     }
 
     @Override
     public final void delete(final String prefix) {
         this.pm.delete(prefix);
+        mappingChanged();
     }
 
     @Override
     public final void clear() {
         this.pm.clear();
+        mappingChanged();
     }
 
     @Override
@@ -92,7 +231,6 @@ public class CheckedPrefixMap implements PrefixMap {
 
     @Override
     public final String abbreviate(final String uriStr) {
-        System.out.println("abbreavio");
         Objects.requireNonNull(uriStr);
         final Pair<String, String> p = this.abbrev(uriStr);
         if (p == null)
@@ -100,12 +238,49 @@ public class CheckedPrefixMap implements PrefixMap {
         return p.getLeft() + ":" + p.getRight();
     }
 
+    private static boolean isSafeLocalPart(final String localName) {
+        return localName.indexOf('/') < 0 && localName.indexOf('#') < 0;
+    }
+
+    private static Pair<String, String> split(final Index idx, final String uriStr) {
+        int i = uriStr.lastIndexOf('#');
+        if (i < 0)
+            i = uriStr.lastIndexOf('/');
+        if (i >= 0) {
+            final Integer p = idx.namespaces.get(uriStr.substring(0, i + 1));
+            if (p != null) {
+                final String localName = uriStr.substring(i + 1);
+                if (isSafeLocalPart(localName))
+                    return Pair.create(idx.prefixes.get(p), localName);
+            }
+        }
+        final int p = idx.longestMatch(uriStr);
+        if (p < 0)
+            return NO_ABBREV;
+        final String localName = uriStr.substring(idx.namespaceOf[p].length());
+        if (!isSafeLocalPart(localName))
+            return NO_ABBREV;
+        return Pair.create(idx.prefixes.get(p), localName);
+    }
+
     @Override
     public final Pair<String, String> abbrev(final String uriStr) {
-        final Pair<String, String> p = this.pm.abbrev(uriStr);
-        if (p == null)
+        final Index idx = getIndex();
+        final WriterMetrics metrics = WriterMetrics.get();
+        Pair<String, String> p = this.abbrevCache.get(uriStr);
+        if (metrics != null)
+            (p == null ? metrics.abbreviationMisses : metrics.abbreviationHits).increment();
+        if (p == null) {
+            p = split(idx, uriStr);
+            if (this.abbrevCache.size() >= abbrevCacheSize)
+                this.abbrevCache.clear();
+            this.abbrevCache.put(uriStr, p);
+        }
+        if (p == NO_ABBREV)
             return null;
-        this.usedPrefixes.put(p.getLeft(), true);
+        final Integer i = idx.prefixIndexes.get(p.getLeft());
+        if (i != null)
+            idx.markUsed(i);
         return p;
     }
 
@@ -129,6 +304,4 @@ public class CheckedPrefixMap implements PrefixMap {
         return this.pm.size();
     }
 
-        
-    
 }
@@ -3,11 +3,14 @@ package io.bdrc.jena.sttl;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
@@ -33,7 +36,16 @@ public class CompareComplex implements Comparator<Node> {
 	public Comparator<Node> compLiteral = defaultCompLiteral;
 	public List<String> propUris = null;
 	public Graph g = null;
+	/**
+	 * Comparator used when the comparison finds no difference, null to keep the order
+	 * of the input.
+	 */
+	public Comparator<Node> compTies = null;
 	public static final List<String> defaultPropUris = new ArrayList<>();
+	/**
+	 * Counter of the comparisons made, null to not count them.
+	 */
+	public LongAdder comparisons = null;
 	static {
 		defaultPropUris.add(RDF.type.getURI());
 		defaultPropUris.add(RDFS.label.getURI());
@@ -87,6 +99,11 @@ public class CompareComplex implements Comparator<Node> {
 	}
 
 	public Integer comparePGroups(SortedMap<String, List<Node>> pGroups1, SortedMap<String, List<Node>> pGroups2, boolean doRecurse) {
+		return comparePGroups(pGroups1, pGroups2, doRecurse, null);
+	}
+
+	private Integer comparePGroups(SortedMap<String, List<Node>> pGroups1, SortedMap<String, List<Node>> pGroups2, boolean doRecurse,
+			final Map<Node, SortedMap<String, List<Node>>> signatures) {
 		// only stable if there is one object per compared property
 		for (Entry<String, List<Node>> e : pGroups1.entrySet()) {
 			if (!pGroups2.containsKey(e.getKey())) {
@@ -100,7 +117,7 @@ public class CompareComplex implements Comparator<Node> {
 			if (res != null && res == 0)
 				continue;
 			if (res == null && o1.isBlank() && o2.isBlank() && doRecurse) {
-				res = compare(o1, o2, false);
+				res = compare(o1, o2, false, signatures);
 				if (res != null && res != 0)
 					return res;
 				continue;
@@ -128,7 +145,16 @@ public class CompareComplex implements Comparator<Node> {
 	 */
 	@Override
 	public int compare(final Node t1, final Node t2) {
-		return compare(t1, t2, true);
+		return compareWithTies(t1, t2, null);
+	}
+
+	private int compareWithTies(final Node t1, final Node t2, final Map<Node, SortedMap<String, List<Node>>> signatures) {
+		if (comparisons != null)
+			comparisons.increment();
+		final int res = compare(t1, t2, true, signatures);
+		if (res == 0 && compTies != null)
+			return compTies.compare(t1, t2);
+		return res;
 	}
 	
 	// copied from https://github.com/apache/jena/blob/c78176284b89c00fff929cd18e15e2b704991887/jena-arq/src/main/java/org/apache/jena/riot/system/RiotLib.java#L273
@@ -159,34 +185,71 @@ public class CompareComplex implements Comparator<Node> {
 	    }
 	
 	public Integer compare(final Node t1, final Node t2, boolean doRecurse) {
+		return compare(t1, t2, doRecurse, null);
+	}
+
+	/**
+	 * Sorts a list of nodes. What the comparison needs to know about each node
+	 * (its objects, grouped by predicate) is computed only once per node instead
+	 * of once per comparison. The sort is the same as
+	 * <code>Collections.sort(nodes, this)</code>, and so is the order.
+	 * 
+	 * @param nodes
+	 * The nodes to sort.
+	 */
+	public void sort(final List<Node> nodes) {
+		final Map<Node, SortedMap<String, List<Node>>> signatures = new HashMap<>();
+		nodes.sort((t1, t2) -> compareWithTies(t1, t2, signatures));
+	}
+
+	// the objects of a node grouped by predicate, from the cache if there is one
+	private SortedMap<String, List<Node>> getPGroups(final Node n, final Map<Node, SortedMap<String, List<Node>>> signatures) {
+		if (signatures == null)
+			return groupByPredicates(RiotLib.triplesOfSubject(g, n));
+		return signatures.computeIfAbsent(n, x -> groupByPredicates(RiotLib.triplesOfSubject(g, x)));
+	}
+
+	// the object of the only triple with the predicate, null if there is none
+	// or more than one; without signatures, the graph is queried instead of
+	// grouping all the triples of the node
+	private Node getOneObject(final Node n, final String propUri, final Map<Node, SortedMap<String, List<Node>>> signatures) {
+		if (signatures == null) {
+			final Triple t = getOneTriple(g, n, NodeFactory.createURI(propUri), Node.ANY);
+			return (t == null) ? null : t.getObject();
+		}
+		final List<Node> objects = getPGroups(n, signatures).get(propUri);
+		if (objects == null || objects.size() != 1)
+			return null;
+		return objects.get(0);
+	}
+
+	private Integer compare(final Node t1, final Node t2, boolean doRecurse, final Map<Node, SortedMap<String, List<Node>>> signatures) {
 		// sort by property
 		Integer res = CompareLiterals.compareUri(t1, t2);
 		if (res != null) return res;
 		// iterate over the different properties registered by the user
 		for (final String propUri : this.propUris) {
-			final Triple t1t = getOneTriple(g, t1, NodeFactory.createURI(propUri), Node.ANY) ;
-			final Triple t2t = getOneTriple(g, t2, NodeFactory.createURI(propUri), Node.ANY) ;
-			if (t1t == null) {
-				if (t2t == null)
+			final Node t1n = getOneObject(t1, propUri, signatures);
+			final Node t2n = getOneObject(t2, propUri, signatures);
+			if (t1n == null) {
+				if (t2n == null)
 					// if neither of the nodes have the property, we just compare with the next property
 					continue;
 				return 1;
 			}
-			if (t2t == null) 
+			if (t2n == null) 
 				return -1;
 			// then we just compare in the regular way
 			// note that this is not recursive: we don't apply the same method to
 			// blank nodes we would encounter, although that would certainly be
 			// relatively simple...
-			final Node t1n = t1t.getObject();
-			final Node t2n = t2t.getObject();
 			res = CompareLiterals.compareUri(t1n, t2n);
 			if (res != null && res != 0) 
 				return res;
 			if (res != null && res == 0)
 				continue;
 			if (res == null && t1n.isBlank() && t2n.isBlank() && doRecurse) {
-				res = compare(t1n, t2n, false);
+				res = compare(t1n, t2n, false, signatures);
 				if (res != 0)
 					return res;
 			}
@@ -195,14 +258,12 @@ public class CompareComplex implements Comparator<Node> {
 				return res;
 		}
 		// if it's not enough, iterate over the properties of t1 + t2 in alphabetical order:
-		final Collection<Triple> clusterT1 = RiotLib.triplesOfSubject(g, t1) ;
-		final Collection<Triple> clusterT2 = RiotLib.triplesOfSubject(g, t2) ;
-		final SortedMap<String, List<Node>> pGroups1 = groupByPredicates(clusterT1);
-		final SortedMap<String, List<Node>> pGroups2 = groupByPredicates(clusterT2) ;
+		final SortedMap<String, List<Node>> pGroups1 = getPGroups(t1, signatures);
+		final SortedMap<String, List<Node>> pGroups2 = getPGroups(t2, signatures);
 		if (pGroups1.keySet().size() > pGroups2.keySet().size()) {
-			return comparePGroups(pGroups1, pGroups2, doRecurse);
+			return comparePGroups(pGroups1, pGroups2, doRecurse, signatures);
 		} else {
-			res = comparePGroups(pGroups2, pGroups1, doRecurse);
+			res = comparePGroups(pGroups2, pGroups1, doRecurse, signatures);
 			return (res != null) ? -res : null;
 		}
 	}
@@ -1,7 +1,10 @@
 package io.bdrc.jena.sttl;
 
+import java.text.CollationKey;
 import java.text.Collator;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.jena.datatypes.RDFDatatype;
 import org.apache.jena.datatypes.xsd.XSDDatatype;
@@ -17,7 +20,99 @@ import org.apache.jena.reasoner.rulesys.Util;
 */
 public final class CompareLiterals implements Comparator<Node> {
     
-    public static Collator collator = Collator.getInstance(); // root locale
+    // the collator used for strings, root locale by default. It is only used as a
+    // prototype: each thread compares with its own clone, see getCollator()
+    private static volatile Collator collator = Collator.getInstance(); // root locale
+    
+    private static final class LocalCollator {
+        final Collator prototype;
+        final Collator collator;
+        
+        LocalCollator(final Collator prototype) {
+            this.prototype = prototype;
+            this.collator = (Collator) prototype.clone();
+        }
+    }
+    
+    private static final ThreadLocal<LocalCollator> localCollators = new ThreadLocal<>();
+    
+    /**
+    * Comparator used between two blank nodes, if null they are compared by label.
+    */
+    public Comparator<Node> compBlanks = null;
+    
+    // least recently used collation keys of each thread, null if keys are not cached
+    private final ThreadLocal<CollationKeyCache> collationKeys;
+    // metrics of the writers, read once, null if not collected
+    private final WriterMetrics metrics;
+    
+    private static final class CollationKeyCache extends LinkedHashMap<String, CollationKey> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        
+        CollationKeyCache(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CollationKey> eldest) {
+            return size() > maxSize;
+        }
+    }
+    
+    /**
+    * Default constructor: strings are compared directly with the collator.
+    */
+    public CompareLiterals() {
+        this.collationKeys = null;
+        this.metrics = null;
+    }
+    
+    /**
+    * Constructor caching the collation keys of the compared strings, so that
+    * sorting n strings computes n keys instead of n log n collations.
+    * Instances are meant to be used for one write. Each thread has its own
+    * cache, so that sorts running in parallel do not wait for each other.
+    * 
+    * @param collationKeyCacheSize
+    * the maximum number of keys kept by each thread, the least recently used
+    * are evicted. 0 or less disables the cache.
+    */
+    public CompareLiterals(final int collationKeyCacheSize) {
+        this.collationKeys = (collationKeyCacheSize > 0) ? ThreadLocal.withInitial(() -> new CollationKeyCache(collationKeyCacheSize)) : null;
+        this.metrics = WriterMetrics.get();
+    }
+    
+    /**
+    * Sets the collator used for string comparison. The collator is copied: changing
+    * it afterwards (its strength for instance) has no effect on the comparisons,
+    * call this method again with the changed collator instead.
+    * 
+    * @param prototype
+    * the collator that will be cloned for each thread
+    */
+    public static void setCollator(final Collator prototype) {
+        collator = (Collator) prototype.clone();
+    }
+    
+    /**
+    * Collator instances are not thread-safe, so each thread gets its own clone
+    * of the collator, refreshed when {@link #setCollator(Collator)} is called.
+    * The returned collator must not be changed.
+    * 
+    * @return
+    * the collator of the current thread
+    */
+    public static Collator getCollator() {
+        final Collator prototype = collator;
+        LocalCollator local = localCollators.get();
+        if (local == null || local.prototype != prototype) {
+            local = new LocalCollator(prototype);
+            localCollators.set(local);
+        }
+        return local.collator;
+    }
     
 	/**
 	* Comparison of two string literals, using the root collation.
@@ -32,7 +127,25 @@ public final class CompareLiterals implements Comparator<Node> {
 	* the result of the string comparison
 	*/
     public static int compareStrings(final String s1, final String s2, final String lang) {
-        return collator.compare(s1, s2);
+        return getCollator().compare(s1, s2);
+    }
+    
+    private CollationKey getCollationKey(final CollationKeyCache keys, final String s) {
+        CollationKey res = keys.get(s);
+        if (metrics != null)
+            (res == null ? metrics.collationKeyMisses : metrics.collationKeyHits).increment();
+        if (res == null) {
+            res = getCollator().getCollationKey(s);
+            keys.put(s, res);
+        }
+        return res;
+    }
+    
+    private int compareLexicalForms(final String s1, final String s2, final String lang) {
+        if (collationKeys == null)
+            return compareStrings(s1, s2, lang);
+        final CollationKeyCache keys = collationKeys.get();
+        return getCollationKey(keys, s1).compareTo(getCollationKey(keys, s2));
     }
     
 	/**
@@ -108,15 +221,18 @@ public final class CompareLiterals implements Comparator<Node> {
     	// then others sorted by type then contentS
         Integer res = compareUri(t1, t2);
         if (res != null) return res;
-        if (t1.isBlank() && t2.isBlank())
+        if (t1.isBlank() && t2.isBlank()) {
+            if (compBlanks != null)
+                return compBlanks.compare(t1, t2);
         	return t1.getBlankNodeLabel().compareTo(t2.getBlankNodeLabel());
+        }
         final String lang1 = t1.getLiteralLanguage();
         final String lang2 = t2.getLiteralLanguage();
         if (!lang1.isEmpty()) {
             if (!lang2.isEmpty()) {
                 res = lang1.compareTo(lang2);
                 if (res != 0) return res;
-                return compareStrings(t1.getLiteralLexicalForm(), t2.getLiteralLexicalForm(), lang1);
+                return compareLexicalForms(t1.getLiteralLexicalForm(), t2.getLiteralLexicalForm(), lang1);
             } else {
                 return -1;
             }
@@ -129,7 +245,7 @@ public final class CompareLiterals implements Comparator<Node> {
         if (t1t == XSDDatatype.XSDstring) {
         	if (t2t != XSDDatatype.XSDstring)
         		return -1;
-        	return compareStrings(t1.getLiteralLexicalForm(), t2.getLiteralLexicalForm(), null);
+        	return compareLexicalForms(t1.getLiteralLexicalForm(), t2.getLiteralLexicalForm(), null);
         }
         if (t2t == XSDDatatype.XSDstring)
         	return 1;
@@ -2,9 +2,19 @@ package io.bdrc.jena.sttl;
 
 import static org.apache.jena.riot.writer.WriterConst.RDF_type;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.jena.graph.Node;
 import org.apache.jena.vocabulary.RDF;
@@ -12,6 +22,12 @@ import org.apache.jena.vocabulary.RDFS;
 
 /**
 * Predicate comparator.
+* 
+* The writers give the predicates of each graph a dense rank before sorting,
+* their position among the predicates already ranked, so that most
+* comparisons are comparisons of ranks. Predicates without a rank are compared
+* directly. Instances can be shared between writers, see
+* {@link #forPriorities(SortedMap, int)}.
 *  
 * @author Elie Roux
 * @author Buddhist Digital Resource Center (BDRC)
@@ -22,6 +38,17 @@ public class ComparePredicates implements Comparator<Node> {
 	private SortedMap<String, Integer> NSPriorities;
 	private int defaultPriority;
 	
+	// maximum number of ranked predicates, other predicates are compared directly
+	private static final int MAX_RANKED_PREDICATES = 1 << 12;
+	
+	// maximum number of instances kept by forPriorities
+	private static final int MAX_INSTANCES = 64;
+	private static final Map<List<Object>, ComparePredicates> instances = new ConcurrentHashMap<>();
+	
+	// the ranked predicates in order, and their ranks (copied on write)
+	private final List<Node> ranked = new ArrayList<>();
+	private volatile Map<Node, Integer> ranks = Collections.emptyMap();
+	
     private int getNSPriority(final Node p) {
     	// RDF_type is always first
         if ( p.equals(RDF_type) )
@@ -64,6 +91,53 @@ public class ComparePredicates implements Comparator<Node> {
     	this.defaultPriority = defaultPriority;
     }
 
+	/**
+	* Instance shared by the writers using the same priorities, so that the
+	* predicates are ranked once.
+	* 
+	* @param NSPriorities
+	* A sorted map of namespace -&gt; priority
+	* @param defaultPriority
+	* A default priority to apply to namespaces not in the list.
+	* @return
+	* a comparator for these priorities
+	*/
+    public static ComparePredicates forPriorities(SortedMap<String,Integer> NSPriorities, int defaultPriority) {
+        final List<Object> key = Arrays.asList(new TreeMap<>(NSPriorities), defaultPriority);
+        ComparePredicates res = instances.get(key);
+        if (res == null) {
+            if (instances.size() >= MAX_INSTANCES)
+                instances.clear();
+            res = instances.computeIfAbsent(key, x -> new ComparePredicates(new TreeMap<>(NSPriorities), defaultPriority));
+        }
+        return res;
+    }
+
+    // ranks the predicates that don't have a rank yet, if there is room, with
+    // one sort and one copy of the ranks
+    void rank(final Collection<Node> predicates) {
+        if (this.ranks.keySet().containsAll(predicates))
+            return;
+        synchronized (this) {
+            final Map<Node, Integer> current = this.ranks;
+            final Set<Node> added = new HashSet<>();
+            for (final Node p : predicates) {
+                if (this.ranked.size() + added.size() >= MAX_RANKED_PREDICATES)
+                    break;
+                if (p.isURI() && !current.containsKey(p))
+                    added.add(p);
+            }
+            if (added.isEmpty())
+                return;
+            this.ranked.addAll(added);
+            this.ranked.sort(this::compareURIs);
+            final Map<Node, Integer> res = new HashMap<>();
+            for (int i = 0; i < this.ranked.size(); i++)
+                res.put(this.ranked.get(i), i);
+            this.ranks = res;
+        }
+    }
+
     /**
 	* Comparison function.
 	* 
@@ -71,6 +145,15 @@ public class ComparePredicates implements Comparator<Node> {
 	*/
     @Override
     public int compare(final Node t1, final Node t2) {
+        final Map<Node, Integer> r = this.ranks;
+        final Integer rank1 = r.get(t1);
+        final Integer rank2 = r.get(t2);
+        if (rank1 == null || rank2 == null)
+            return compareURIs(t1, t2);
+        return Integer.compare(rank1, rank2);
+    }
+
+    private int compareURIs(final Node t1, final Node t2) {
         final int class1 = getNSPriority(t1) ;
         final int class2 = getNSPriority(t2) ;
         if ( class1 != class2 ) {
@@ -0,0 +1,83 @@
+package io.bdrc.jena.sttl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.atlas.iterator.Iter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.Quad;
+
+/**
+ * Index of the blank nodes of a dataset, built in one scan of its quads
+ * and shared by all the graphs written from the dataset.
+ *
+ * It holds the graph names, the in-degrees of the blank nodes and, for
+ * each blank node, the only graph it is used in (or a marker if it is used
+ * in more than one graph).
+ */
+final class DatasetBNodeIndex {
+
+    // marker for blank nodes used in more than one graph
+    private static final Node MANY = Node.ANY;
+
+    final Set<Node> graphNames;
+    final BNodeInDegrees inDegrees;
+    private final Map<Node, Node> owners;
+
+    DatasetBNodeIndex(final DatasetGraph dsg) {
+        this.graphNames = Iter.toSet(dsg.listGraphNodes());
+        this.inDegrees = new BNodeInDegrees();
+        this.owners = new HashMap<>();
+        final Iterator<Quad> iter = dsg.find(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
+        while (iter.hasNext()) {
+            final Quad q = iter.next();
+            final Node g = isDefaultGraph(q.getGraph()) ? Quad.defaultGraphIRI : q.getGraph();
+            if (q.getSubject().isBlank())
+                addOwner(q.getSubject(), g);
+            if (q.getPredicate().isBlank())
+                addOwner(q.getPredicate(), g);
+            if (q.getObject().isBlank()) {
+                addOwner(q.getObject(), g);
+                inDegrees.inc(q.getObject());
+            }
+        }
+    }
+
+    private void addOwner(final Node n, final Node g) {
+        final Node prev = owners.putIfAbsent(n, g);
+        if (prev != null && prev != MANY && !prev.equals(g))
+            owners.put(n, MANY);
+    }
+
+    private static boolean isDefaultGraph(final Node node) {
+        return node == null || Quad.isDefaultGraph(node);
+    }
+
+    /**
+     * Check whether a node is used only in one graph of the dataset.
+     *
+     * @param node
+     * the node to check
+     * @param graphName
+     * the name of the graph, null for the default graph
+     * @return
+     * true if the node is not a graph name and all the quads it appears in
+     * are in graphName
+     */
+    boolean containedInOneGraph(final Node node, final Node graphName) {
+        if (graphNames.contains(node))
+            // Used as a graph name.
+            return false;
+        final Node owner = owners.get(node);
+        if (owner == null)
+            return true;
+        if (owner == MANY)
+            return false;
+        if (owner == Quad.defaultGraphIRI)
+            return isDefaultGraph(graphName);
+        return owner.equals(graphName);
+    }
+}
@@ -0,0 +1,284 @@
+package io.bdrc.jena.sttl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+
+/**
+ * Sort of a stream of nodes within a memory budget, removing duplicates.
+ *
+ * Nodes are buffered until their estimated size exceeds the budget, the
+ * buffer is then sorted and spilled to a temporary file (a sorted run).
+ * The sorted nodes are given by a k-way merge of the runs and of the last
+ * buffer. Distinct nodes that the comparator can't tell apart come in the
+ * order they were first added, as with Collections.sort.
+ *
+ * URIs, blank nodes and literals are spilled, other nodes (triple terms)
+ * are always kept in memory.
+ */
+final class ExternalNodeSort implements Closeable {
+
+    private static final byte URI = 'U';
+    private static final byte BLANK = 'B';
+    private static final byte LITERAL = 'L';
+
+    // rough size of a node and its string in memory, besides the characters
+    private static final long NODE_OVERHEAD = 64;
+
+    private final Comparator<Node> comparator;
+    private final long memoryBudget;
+    private final List<Node> buffer = new ArrayList<>();
+    private final List<Node> pinned = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private final List<DataInputStream> readers = new ArrayList<>();
+    private long bufferSize = 0;
+
+    /**
+     * @param comparator
+     * the order of the nodes
+     * @param memoryBudget
+     * the approximate number of bytes the buffered nodes can take
+     */
+    ExternalNodeSort(final Comparator<Node> comparator, final long memoryBudget) {
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+    }
+
+    private static long estimateSize(final Node n) {
+        if (n.isURI())
+            return NODE_OVERHEAD + 2 * n.getURI().length();
+        if (n.isBlank())
+            return NODE_OVERHEAD + 2 * n.getBlankNodeLabel().length();
+        return NODE_OVERHEAD + 2 * n.getLiteralLexicalForm().length();
+    }
+
+    void add(final Node n) {
+        if (!n.isURI() && !n.isBlank() && !n.isLiteral()) {
+            pinned.add(n);
+            return;
+        }
+        buffer.add(n);
+        bufferSize += estimateSize(n);
+        if (bufferSize > memoryBudget)
+            spill();
+    }
+
+    /**
+     * @return
+     * the number of runs spilled to disk so far
+     */
+    int nbRuns() {
+        return runs.size();
+    }
+
+    private void spill() {
+        Collections.sort(buffer, comparator);
+        try {
+            final Path run = Files.createTempFile("sttl-", ".run");
+            runs.add(run);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+                for (final Node n : buffer)
+                    writeNode(dos, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+        bufferSize = 0;
+    }
+
+    private static void writeString(final DataOutputStream dos, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(final DataInputStream dis) throws IOException {
+        final byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNode(final DataOutputStream dos, final Node n) throws IOException {
+        if (n.isURI()) {
+            dos.writeByte(URI);
+            writeString(dos, n.getURI());
+        } else if (n.isBlank()) {
+            dos.writeByte(BLANK);
+            writeString(dos, n.getBlankNodeLabel());
+        } else {
+            dos.writeByte(LITERAL);
+            writeString(dos, n.getLiteralLexicalForm());
+            writeString(dos, n.getLiteralLanguage());
+            writeString(dos, n.getLiteralDatatypeURI());
+        }
+    }
+
+    // null at the end of the run
+    private static Node readNode(final DataInputStream dis) throws IOException {
+        final byte type;
+        try {
+            type = dis.readByte();
+        } catch (EOFException e) {
+            return null;
+        }
+        switch (type) {
+        case URI:
+            return NodeFactory.createURI(readString(dis));
+        case BLANK:
+            return NodeFactory.createBlankNode(readString(dis));
+        default:
+            final String lex = readString(dis);
+            final String lang = readString(dis);
+            final String dt = readString(dis);
+            if (!lang.isEmpty())
+                return NodeFactory.createLiteralLang(lex, lang);
+            return NodeFactory.createLiteralDT(lex, TypeMapper.getInstance().getSafeTypeByName(dt));
+        }
+    }
+
+    // the head of a run during the merge
+    private static final class Head {
+        final Node node;
+        final int run;
+        final Iterator<Node> rest;
+
+        Head(final Node node, final int run, final Iterator<Node> rest) {
+            this.node = node;
+            this.run = run;
+            this.rest = rest;
+        }
+    }
+
+    private Iterator<Node> runIterator(final Path run) {
+        final DataInputStream dis;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        readers.add(dis);
+        return new Iterator<Node>() {
+            private Node next = read();
+
+            private Node read() {
+                try {
+                    return readNode(dis);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Node next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                final Node res = next;
+                next = read();
+                return res;
+            }
+        };
+    }
+
+    /**
+     * @return
+     * the sorted distinct nodes, to be called once all the nodes are added
+     */
+    Iterator<Node> sorted() {
+        buffer.addAll(pinned);
+        pinned.clear();
+        Collections.sort(buffer, comparator);
+        final PriorityQueue<Head> heads = new PriorityQueue<>((h1, h2) -> {
+            final int res = comparator.compare(h1.node, h2.node);
+            return (res != 0) ? res : Integer.compare(h1.run, h2.run);
+        });
+        final List<Iterator<Node>> its = new ArrayList<>();
+        for (final Path run : runs)
+            its.add(runIterator(run));
+        its.add(buffer.iterator());
+        for (int i = 0; i < its.size(); i++) {
+            final Iterator<Node> it = its.get(i);
+            if (it.hasNext())
+                heads.add(new Head(it.next(), i, it));
+        }
+        return new Iterator<Node>() {
+            // the nodes already given that compare equal to the last one
+            private final Set<Node> ties = new HashSet<>();
+            private Node last = null;
+            private Node next = advance();
+
+            private Node advance() {
+                while (!heads.isEmpty()) {
+                    final Head h = heads.poll();
+                    if (h.rest.hasNext())
+                        heads.add(new Head(h.rest.next(), h.run, h.rest));
+                    if (last == null || comparator.compare(last, h.node) != 0)
+                        ties.clear();
+                    last = h.node;
+                    if (ties.add(h.node))
+                        return h.node;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Node next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                final Node res = next;
+                next = advance();
+                return res;
+            }
+        };
+    }
+
+    /**
+     * Deletes the runs.
+     */
+    @Override
+    public void close() {
+        for (final DataInputStream dis : readers)
+            IO.close(dis);
+        readers.clear();
+        for (final Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        runs.clear();
+    }
+}
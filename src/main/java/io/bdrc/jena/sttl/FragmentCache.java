@@ -0,0 +1,552 @@
+package io.bdrc.jena.sttl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+
+/**
+* On-disk cache of the text of rendered subjects, so that writing again a
+* graph where few subjects changed copies the text of the others instead of
+* sorting and formatting them.
+*
+* The key of a subject is what its text depends on: its triples, the nested
+* blank nodes and lists they lead to, the indentation and a hash of the
+* configuration of the writer. Subjects whose text has blank node labels are
+* not cached, nor anything when canonicalBNodes is set (the order of tied
+* blank nodes depends on the whole graph).
+*
+* The entries (key and text) are appended to a few segment files of the
+* directory, mapped in memory, with an index in memory by a 128 bits hash of
+* the key. A hit is a comparison of the key and a copy of the text from the
+* mapping, without any system call or cryptographic hash, and the cache can be
+* used again after a restart (the index is then read from the segments). The
+* least recently used entries are removed when they take more than the maximum
+* size (the order of use is the order of writing after a restart); segments
+* are deleted when none of their entries are left, or copied into the newest
+* one when most of them are gone.
+*
+* A directory is only used by one cache at a time: the cache holds a lock on
+* a file of the directory until it's closed, and opening another cache on the
+* directory (in this process or in another one) fails.
+*
+* Pass it to the writers with the symbol
+* <code>STTLWriter.SYMBOLS_NS + "fragmentCache"</code>.
+*/
+public final class FragmentCache implements Closeable {
+
+    /**
+    * Version of the text of the fragments, part of the keys.
+    */
+    static final String FORMAT_VERSION = "1";
+
+    private static final String SUFFIX = ".seg";
+
+    private static final String LOCK = "lock";
+
+    // record: key length, text length, CRC of the key and text, key, text
+    private static final int HEADER = 12;
+
+    private static final int MIN_SEGMENT_BYTES = 1 << 20;
+    private static final int MAX_SEGMENT_BYTES = 1 << 28;
+
+    /**
+    * Segment file, mapped in memory. Records are only appended, so the
+    * mapping of a removed segment can still be read.
+    */
+    private static final class Segment {
+        final long id;
+        final Path file;
+        final MappedByteBuffer buffer;
+        // end of the records
+        int end = 0;
+        // bytes of the records in the index
+        long liveBytes = 0;
+
+        Segment(final long id, final Path file, final MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+    * Key of an entry, built by the writer: the bytes of what the text depends
+    * on, where strings are prefixed by their length.
+    */
+    static final class Key {
+        private byte[] buf = new byte[256];
+        private int size = 0;
+
+        int size() {
+            return this.size;
+        }
+
+        private void ensure(final int n) {
+            if (this.size + n > this.buf.length)
+                this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.size + n));
+        }
+
+        Key put(final char ascii) {
+            ensure(1);
+            this.buf[this.size++] = (byte) ascii;
+            return this;
+        }
+
+        Key putInt(final int v) {
+            ensure(4);
+            this.buf[this.size++] = (byte) (v >>> 24);
+            this.buf[this.size++] = (byte) (v >>> 16);
+            this.buf[this.size++] = (byte) (v >>> 8);
+            this.buf[this.size++] = (byte) v;
+            return this;
+        }
+
+        // UTF-8, where the surrogates that are not in a pair become '?' as in
+        // the output
+        Key putString(final String s) {
+            final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            putInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, this.buf, this.size, b.length);
+            this.size += b.length;
+            return this;
+        }
+
+        /**
+        * Sorts the parts of the key between consecutive bounds, so that the
+        * key doesn't depend on the order in which they were added.
+        */
+        void sort(final int[] bounds) {
+            final int n = bounds.length - 1;
+            if (n < 2)
+                return;
+            final Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++)
+                order[i] = i;
+            final byte[] b = this.buf;
+            Arrays.sort(order, (i, j) -> Arrays.compareUnsigned(b, bounds[i], bounds[i + 1], b, bounds[j], bounds[j + 1]));
+            final int start = bounds[0];
+            final byte[] parts = Arrays.copyOfRange(b, start, bounds[n]);
+            int pos = start;
+            for (final int i : order) {
+                final int len = bounds[i + 1] - bounds[i];
+                System.arraycopy(parts, bounds[i] - start, b, pos, len);
+                pos += len;
+            }
+        }
+    }
+
+    /**
+    * Hash of a key, in the index.
+    */
+    private static final class Hash {
+        final long h1;
+        final long h2;
+
+        Hash(final byte[] key, final int length) {
+            final long[] h = MurmurHash3.hash128x64(key, 0, length, 0);
+            this.h1 = h[0];
+            this.h2 = h[1];
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) this.h1;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Hash && ((Hash) o).h1 == this.h1 && ((Hash) o).h2 == this.h2;
+        }
+    }
+
+    private static final class Entry {
+        final Segment segment;
+        // offset of the key in the segment, followed by the text
+        final int offset;
+        final int keyLength;
+        final int textLength;
+
+        Entry(final Segment segment, final int offset, final int keyLength, final int textLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.textLength = textLength;
+        }
+
+        int recordBytes() {
+            return HEADER + this.keyLength + this.textLength;
+        }
+
+        boolean hasKey(final Key key) {
+            return key.size == this.keyLength && this.segment.buffer.slice(this.offset, this.keyLength).equals(ByteBuffer.wrap(key.buf, 0, key.size));
+        }
+
+        byte[] key() {
+            final byte[] res = new byte[this.keyLength];
+            this.segment.buffer.get(this.offset, res);
+            return res;
+        }
+
+        byte[] text() {
+            final byte[] res = new byte[this.textLength];
+            this.segment.buffer.get(this.offset + this.keyLength, res);
+            return res;
+        }
+    }
+
+    private final Path dir;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private boolean closed = false;
+    private final long maxBytes;
+    private final int segmentBytes;
+    // least recently used first
+    private final LinkedHashMap<Hash, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // by id, oldest first
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    // segment of the new records
+    private Segment active = null;
+    // bytes of the keys and texts of the entries
+    private long totalBytes = 0;
+    // bytes of the records of the segments, and of those in the index
+    private long usedBytes = 0;
+    private long liveBytes = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+    * Opens the cache in a directory, created if needed, finding the entries
+    * written before.
+    *
+    * @param dir
+    * the directory of the entries
+    * @param maxBytes
+    * the maximum size of the entries
+    * @throws IOException
+    * if the directory can't be read, or is used by another cache
+    */
+    public FragmentCache(final Path dir, final long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = (int) Math.min(MAX_SEGMENT_BYTES, Math.max(MIN_SEGMENT_BYTES, maxBytes / 8));
+        Files.createDirectories(dir);
+        this.lockChannel = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = this.lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held in this process
+        } finally {
+            if (lock == null)
+                this.lockChannel.close();
+        }
+        if (lock == null)
+            throw new IOException("fragment cache directory used by another cache: " + dir);
+        this.lock = lock;
+        // closing the channel releases the lock
+        boolean loaded = false;
+        try {
+            final List<Long> ids = new ArrayList<>();
+            try (Stream<Path> s = Files.list(dir)) {
+                s.forEach(f -> {
+                    final String name = f.getFileName().toString();
+                    if (!name.endsWith(SUFFIX))
+                        return;
+                    try {
+                        ids.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                });
+            }
+            ids.sort(null);
+            for (final long id : ids) {
+                final Path file = segmentFile(id);
+                final long size = Files.size(file);
+                if (size > MAX_SEGMENT_BYTES)
+                    continue;
+                load(map(id, (int) size));
+            }
+            if (!this.segments.isEmpty())
+                this.active = this.segments.lastEntry().getValue();
+            for (final Segment s : new ArrayList<>(this.segments.values())) {
+                if (s.liveBytes == 0 && s != this.active)
+                    drop(s);
+            }
+            loaded = true;
+        } finally {
+            if (!loaded)
+                this.lockChannel.close();
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    private Path segmentFile(final long id) {
+        return this.dir.resolve(String.format("%016d%s", id, SUFFIX));
+    }
+
+    // maps a segment, the file is created or extended to the size
+    private Segment map(final long id, final int size) throws IOException {
+        final Path file = segmentFile(id);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final Segment segment = new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            this.segments.put(id, segment);
+            return segment;
+        }
+    }
+
+    private static int crc(final MappedByteBuffer buffer, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    // reads the records of a segment, up to the end of the records or to an
+    // interrupted write
+    private void load(final Segment segment) {
+        final MappedByteBuffer b = segment.buffer;
+        final int capacity = b.capacity();
+        int pos = 0;
+        while (pos + HEADER <= capacity) {
+            final int keyLength = b.getInt(pos);
+            final int length = b.getInt(pos + 4);
+            if (keyLength <= 0 || length < 0 || keyLength > capacity - pos - HEADER || length > capacity - pos - HEADER - keyLength)
+                break;
+            if (b.getInt(pos + 8) != crc(b, pos + HEADER, keyLength + length))
+                break;
+            final Entry entry = new Entry(segment, pos + HEADER, keyLength, length);
+            segment.end = pos + entry.recordBytes();
+            this.usedBytes += entry.recordBytes();
+            final byte[] key = entry.key();
+            add(new Hash(key, key.length), entry);
+            pos = segment.end;
+        }
+    }
+
+    private void add(final Hash key, final Entry entry) {
+        entry.segment.liveBytes += entry.recordBytes();
+        this.liveBytes += entry.recordBytes();
+        this.totalBytes += entry.keyLength + entry.textLength;
+        final Entry previous = this.entries.put(key, entry);
+        if (previous != null)
+            removed(previous);
+    }
+
+    // accounts for an entry that left the index
+    private void removed(final Entry entry) {
+        final Segment segment = entry.segment;
+        segment.liveBytes -= entry.recordBytes();
+        this.liveBytes -= entry.recordBytes();
+        this.totalBytes -= entry.keyLength + entry.textLength;
+        if (segment.liveBytes == 0 && segment != this.active)
+            drop(segment);
+    }
+
+    private void drop(final Segment segment) {
+        this.segments.remove(segment.id);
+        this.usedBytes -= segment.end;
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            // the records are still valid for their keys, found again after a
+            // restart and evicted if needed
+        }
+    }
+
+    // appends a record to the active segment, or to a new one if it doesn't fit
+    private Entry append(final byte[] key, final int keyLength, final byte[] text) throws IOException {
+        final int recordBytes = HEADER + keyLength + text.length;
+        if (this.active == null || this.active.end + recordBytes > this.active.buffer.capacity()) {
+            final Segment previous = this.active;
+            final long id = this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+            this.active = map(id, this.segmentBytes);
+            if (previous != null && previous.liveBytes == 0)
+                drop(previous);
+        }
+        final MappedByteBuffer b = this.active.buffer;
+        final int pos = this.active.end;
+        b.put(pos + HEADER, key, 0, keyLength);
+        b.put(pos + HEADER + keyLength, text);
+        b.putInt(pos + 4, text.length);
+        b.putInt(pos + 8, crc(b, pos + HEADER, keyLength + text.length));
+        b.putInt(pos, keyLength);
+        this.active.end += recordBytes;
+        this.usedBytes += recordBytes;
+        return new Entry(this.active, pos + HEADER, keyLength, text.length);
+    }
+
+    /**
+    * @return
+    * the text of the key in UTF-8, null if it's not in the cache
+    */
+    byte[] get(final Key key) {
+        final WriterMetrics metrics = WriterMetrics.get();
+        final Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(new Hash(key.buf, key.size));
+        }
+        byte[] res = null;
+        // the mapping of the record doesn't change, even if it's removed
+        if (entry != null && entry.hasKey(key))
+            res = entry.text();
+        if (res == null) {
+            this.misses.increment();
+            if (metrics != null)
+                metrics.fragmentMisses.increment();
+        } else {
+            this.hits.increment();
+            if (metrics != null)
+                metrics.fragmentHits.increment();
+        }
+        return res;
+    }
+
+    /**
+    * Adds the text of a key, in UTF-8, removing the least recently used entries if the
+    * cache gets too big.
+    */
+    void put(final Key key, final byte[] text) {
+        if (key.size + text.length > this.maxBytes || HEADER + key.size + text.length > this.segmentBytes)
+            return;
+        synchronized (this) {
+            if (this.closed)
+                return;
+            try {
+                add(new Hash(key.buf, key.size), append(key.buf, key.size, text));
+                evict();
+                compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void evict() {
+        final Iterator<Entry> it = this.entries.values().iterator();
+        while (this.totalBytes > this.maxBytes && it.hasNext()) {
+            final Entry e = it.next();
+            it.remove();
+            removed(e);
+        }
+    }
+
+    // copies the entries of the segments that are mostly unused into the
+    // active segment, so that the files take at most about twice the size of
+    // the entries
+    private void compact() throws IOException {
+        while (this.usedBytes - this.liveBytes > Math.max(this.liveBytes, this.segmentBytes)) {
+            Segment victim = null;
+            for (final Segment s : this.segments.values()) {
+                if (s != this.active && (victim == null || s.end - s.liveBytes > victim.end - victim.liveBytes))
+                    victim = s;
+            }
+            // the unused records are in the active segment
+            if (victim == null || victim.end == victim.liveBytes)
+                return;
+            // in the order of use, which doesn't change
+            for (final Map.Entry<Hash, Entry> me : this.entries.entrySet()) {
+                final Entry e = me.getValue();
+                if (e.segment != victim)
+                    continue;
+                final byte[] key = e.key();
+                final Entry copy = append(key, key.length, e.text());
+                copy.segment.liveBytes += copy.recordBytes();
+                this.liveBytes += copy.recordBytes();
+                me.setValue(copy);
+                victim.liveBytes -= e.recordBytes();
+                this.liveBytes -= e.recordBytes();
+            }
+            drop(victim);
+        }
+    }
+
+    /**
+    * @return
+    * the number of subjects copied from the cache
+    */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+    * @return
+    * the number of cacheable subjects that were not in the cache
+    */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+    * @return
+    * the number of bytes of the keys and texts of the entries
+    */
+    public synchronized long size() {
+        return this.totalBytes;
+    }
+
+    /**
+    * Removes all the entries and resets the counters.
+    */
+    public void clear() {
+        synchronized (this) {
+            this.entries.clear();
+            this.active = null;
+            for (final Segment s : new ArrayList<>(this.segments.values()))
+                drop(s);
+            this.totalBytes = 0;
+            this.usedBytes = 0;
+            this.liveBytes = 0;
+        }
+        this.hits.reset();
+        this.misses.reset();
+    }
+
+    /**
+    * Releases the directory, keeping its entries for the next cache opened
+    * on it. The cache is then empty and adding entries does nothing.
+    */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed)
+                return;
+            this.closed = true;
+            this.entries.clear();
+            this.segments.clear();
+            this.active = null;
+            this.totalBytes = 0;
+            this.usedBytes = 0;
+            this.liveBytes = 0;
+        }
+        try {
+            this.lock.release();
+        } finally {
+            this.lockChannel.close();
+        }
+    }
+
+}
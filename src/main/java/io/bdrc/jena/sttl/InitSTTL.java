@@ -3,10 +3,27 @@ package io.bdrc.jena.sttl;
 import org.apache.jena.sys.JenaSubsystemLifecycle;
 
 public class InitSTTL implements JenaSubsystemLifecycle {
+    /**
+    * System property enabling the metrics at initialization when "true".
+    */
+    public static final String METRICS_PROPERTY = "io.bdrc.jena.sttl.metrics";
+
     @Override
     public void start() {
         STTLWriter.registerWriter();
         STriGWriter.registerWriter();
+        if (Boolean.getBoolean(METRICS_PROPERTY))
+            enableMetrics();
+    }
+
+    /**
+    * Registers the {@link WriterMetrics} MBean, the writes are counted from then on.
+    * 
+    * @return
+    * the metrics
+    */
+    public static WriterMetrics enableMetrics() {
+        return WriterMetrics.enable();
     }
 
     @Override
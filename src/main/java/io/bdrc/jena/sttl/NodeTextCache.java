@@ -0,0 +1,115 @@
+package io.bdrc.jena.sttl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+* Bounded cache of the text of formatted URIs (subjects, predicates, objects
+* and datatypes), that can be shared by writers running in different threads.
+*
+* The text of a URI depends on the base and on the prefixes of the writer, the
+* cache keeps one table per base and prefix mapping. Each table is emptied when
+* it reaches the maximum size, and all the tables are dropped when there are
+* more than {@link #maxConfigurations}.
+*
+* Pass it to the writers with the symbol
+* <code>STTLWriter.SYMBOLS_NS + "nodeTextCache"</code>.
+*/
+public final class NodeTextCache {
+
+    /**
+    * Maximum number of base and prefix mappings kept.
+    */
+    public static int maxConfigurations = 64;
+
+    private final int maxSize;
+    private final Map<List<Object>, Map<String, String>> tables = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+    * @param maxSize
+    * the maximum number of URIs kept for each base and prefix mapping
+    */
+    public NodeTextCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+    * @return
+    * the table of the URIs formatted with this base and these prefixes, to be
+    * used with {@link #get(Map, String, Function)}. The abbreviations of a
+    * CheckedPrefixMap (checked) can differ from the ones of the prefix map it
+    * wraps, they have their own table.
+    */
+    Map<String, String> table(final String baseURI, final Map<String, String> mapping, final boolean checked) {
+        final List<Object> key = Arrays.asList(baseURI, mapping, checked);
+        Map<String, String> res = this.tables.get(key);
+        if (res == null) {
+            if (this.tables.size() >= maxConfigurations)
+                this.tables.clear();
+            res = this.tables.computeIfAbsent(key, x -> new ConcurrentHashMap<>());
+        }
+        return res;
+    }
+
+    String get(final Map<String, String> table, final String uriStr, final Function<String, String> format) {
+        final WriterMetrics metrics = WriterMetrics.get();
+        String res = table.get(uriStr);
+        if (res != null) {
+            this.hits.increment();
+            if (metrics != null)
+                metrics.nodeTextHits.increment();
+            return res;
+        }
+        this.misses.increment();
+        if (metrics != null)
+            metrics.nodeTextMisses.increment();
+        res = format.apply(uriStr);
+        if (table.size() >= this.maxSize)
+            table.clear();
+        table.put(uriStr, res);
+        return res;
+    }
+
+    /**
+    * @return
+    * the number of URIs found in the cache
+    */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+    * @return
+    * the number of URIs formatted because they were not in the cache
+    */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+    * @return
+    * the number of URIs in the cache, for all bases and prefixes
+    */
+    public int size() {
+        int res = 0;
+        for (final Map<String, String> table : this.tables.values())
+            res += table.size();
+        return res;
+    }
+
+    /**
+    * Empties the cache and resets the counters.
+    */
+    public void clear() {
+        this.tables.clear();
+        this.hits.reset();
+        this.misses.reset();
+    }
+
+}
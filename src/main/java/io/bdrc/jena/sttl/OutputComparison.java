@@ -0,0 +1,244 @@
+package io.bdrc.jena.sttl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.util.Context;
+
+/**
+* Compares the output of the writers with an existing document, without
+* keeping the output: the bytes are compared as they are written, and the
+* write is stopped at the first difference. When the output is the same, the
+* cost is the write plus a read of the existing document.
+*
+* Existing files are read through memory mappings.
+*/
+public final class OutputComparison {
+
+    /**
+    * Result of a comparison where the output is the same as the existing
+    * document.
+    */
+    public static final long IDENTICAL = -1;
+
+    // size of the mapped windows of a file
+    private static final long WINDOW = 1L << 26;
+
+    private OutputComparison() {}
+
+    // thrown to stop the writer at the first difference
+    private static final class Difference extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Difference() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+    * The existing bytes, read in order.
+    */
+    private interface Source {
+        // the number of bytes equal to b[off..off+len], stops at the first difference
+        int match(byte[] b, int off, int len) throws IOException;
+
+        // true if all the bytes have been read
+        boolean atEnd() throws IOException;
+    }
+
+    private static final class StreamSource implements Source {
+        private final InputStream in;
+
+        StreamSource(final InputStream in) {
+            this.in = (in instanceof BufferedInputStream) ? in : new BufferedInputStream(in, 1 << 16);
+        }
+
+        @Override
+        public int match(final byte[] b, final int off, final int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                if (in.read() != (b[off + i] & 0xff))
+                    return i;
+            }
+            return len;
+        }
+
+        @Override
+        public boolean atEnd() throws IOException {
+            return in.read() < 0;
+        }
+    }
+
+    private static final class MappedSource implements Source {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private MappedByteBuffer window = null;
+
+        MappedSource(final FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        // the window with the next bytes, null at the end of the file
+        private MappedByteBuffer window() throws IOException {
+            if (window != null && window.hasRemaining())
+                return window;
+            if (window != null)
+                windowStart += window.capacity();
+            if (windowStart >= size)
+                return null;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW, size - windowStart));
+            return window;
+        }
+
+        @Override
+        public int match(final byte[] b, final int off, final int len) throws IOException {
+            int i = 0;
+            while (i < len) {
+                final MappedByteBuffer w = window();
+                if (w == null)
+                    return i;
+                final int n = Math.min(len - i, w.remaining());
+                for (int j = 0; j < n; j++, i++) {
+                    if (w.get() != b[off + i])
+                        return i;
+                }
+            }
+            return len;
+        }
+
+        @Override
+        public boolean atEnd() throws IOException {
+            return window() == null;
+        }
+    }
+
+    /**
+    * Stream comparing the bytes written with the source.
+    */
+    private static final class CompareOutputStream extends OutputStream {
+        private final Source source;
+        private long offset = 0;
+
+        CompareOutputStream(final Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            final int n = source.match(b, off, len);
+            offset += n;
+            if (n < len)
+                throw new Difference();
+        }
+    }
+
+    private static boolean stoppedByDifference(Throwable e) {
+        while (e != null) {
+            if (e instanceof Difference)
+                return true;
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    private static long compare(final Source source, final Consumer<OutputStream> write) throws IOException {
+        final CompareOutputStream out = new CompareOutputStream(source);
+        try {
+            write.accept(out);
+        } catch (RuntimeException e) {
+            if (stoppedByDifference(e))
+                return out.offset;
+            throw e;
+        }
+        return source.atEnd() ? IDENTICAL : out.offset;
+    }
+
+    /**
+    * Compares what a write gives with an existing file.
+    *
+    * @param existing
+    * the file
+    * @param write
+    * writes the output in the stream it's given
+    * @return
+    * {@link #IDENTICAL}, or the offset of the first different byte
+    * @throws IOException
+    * if the file can't be read
+    */
+    public static long firstDifference(final Path existing, final Consumer<OutputStream> write) throws IOException {
+        try (FileChannel channel = FileChannel.open(existing, StandardOpenOption.READ)) {
+            return compare(new MappedSource(channel), write);
+        }
+    }
+
+    /**
+    * Compares what a write gives with an existing document.
+    *
+    * @param existing
+    * the document, not closed
+    * @param write
+    * writes the output in the stream it's given
+    * @return
+    * {@link #IDENTICAL}, or the offset of the first different byte
+    * @throws IOException
+    * if the document can't be read
+    */
+    public static long firstDifference(final InputStream existing, final Consumer<OutputStream> write) throws IOException {
+        return compare(new StreamSource(existing), write);
+    }
+
+    /**
+    * Compares the sorted Turtle of a graph with an existing file.
+    *
+    * @param existing
+    * the file
+    * @param graph
+    * the graph
+    * @param context
+    * the context of the writer, see {@link STTLWriter}
+    * @return
+    * {@link #IDENTICAL}, or the offset of the first different byte
+    * @throws IOException
+    * if the file can't be read
+    */
+    public static long firstDifference(final Path existing, final Graph graph, final Context context) throws IOException {
+        final RDFWriter writer = RDFWriter.create().source(graph).context(context).lang(STTLWriter.registerWriter()).build();
+        return firstDifference(existing, writer::output);
+    }
+
+    /**
+    * Compares the sorted TriG of a dataset with an existing file.
+    *
+    * @param existing
+    * the file
+    * @param dsg
+    * the dataset
+    * @param context
+    * the context of the writer, see {@link STriGWriter}
+    * @return
+    * {@link #IDENTICAL}, or the offset of the first different byte
+    * @throws IOException
+    * if the file can't be read
+    */
+    public static long firstDifference(final Path existing, final DatasetGraph dsg, final Context context) throws IOException {
+        final RDFWriter writer = RDFWriter.create().source(dsg).context(context).lang(STriGWriter.registerWriter()).build();
+        return firstDifference(existing, writer::output);
+    }
+
+}
@@ -0,0 +1,187 @@
+package io.bdrc.jena.sttl;
+
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphMemFactory;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.PrefixMapFactory;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.jena.sparql.util.Context;
+
+/**
+* Streaming sorted TTL / TriG writer.
+* 
+* The input must be sorted by subject (and by graph first for quads), each
+* subject being followed by the triples of the blank nodes it references.
+* This is the shape of N-Triples or N-Quads produced from sorted Turtle.
+* 
+* Triples are grouped in blocks, a block being written as soon as a new
+* subject starts and all the blank nodes of the block are closed: each
+* blank node subject of the block is used as an object in the block and
+* each blank node object has its triples in the block. Otherwise the block
+* grows until they are, or until it has 4096 triples: the blank nodes still
+* open are then written with their labels, and so are their triples in the
+* following blocks. Memory is bounded by the largest closed block, plus the
+* set of labeled blank nodes. Blocks are written in the order of the input,
+* each one sorted in the same way as {@link STTLWriter}. Blank nodes must not
+* be shared between graphs.
+* 
+* Prefixes and base must come before the first triple, later ones are
+* ignored. The onlyWriteUsedPrefixes and canonicalBNodes options are ignored.
+*
+* @author Elie Roux
+* @author Buddhist Digital Resource Center (BDRC)
+* @version 0.1.0
+*/
+public class STTLStreamWriter implements StreamRDF {
+
+    // size of a block from which its open blank nodes are labeled
+    private static final int MAX_OPEN_BLOCK_SIZE = 1 << 12;
+
+    private final IndentedWriter out;
+    private final SttlConfig config;
+    private final boolean trig;
+    private final PrefixMap prefixMap = PrefixMapFactory.create();
+    private String baseURI = null;
+    // created with the first triple, when prefixes and base are known
+    private StreamShell shell = null;
+
+    private Graph block = GraphMemFactory.createDefaultGraph();
+    private Node blockGraphName = null;
+    private Node blockSubject = null;
+    // blank nodes of the block used as subject, as object, and the number
+    // of those used only in one of the two positions
+    private final Set<Node> bnodeSubjects = new HashSet<>();
+    private final Set<Node> bnodeObjects = new HashSet<>();
+    private int nbOpenBNodes = 0;
+    // blank nodes that were open when their block was written
+    private final Set<Node> labeledBNodes = new HashSet<>();
+
+    /**
+    * @param out
+    * The output stream.
+    * @param context
+    * The writer context, see {@link STTLWriter}.
+    * @param trig
+    * Write TriG instead of Turtle.
+    */
+    public STTLStreamWriter(final OutputStream out, final Context context, final boolean trig) {
+        this(out, SttlConfig.of(context), trig);
+    }
+
+    /**
+    * @param out
+    * The output stream.
+    * @param config
+    * The writer configuration, see {@link SttlConfig}.
+    * @param trig
+    * Write TriG instead of Turtle.
+    */
+    public STTLStreamWriter(final OutputStream out, final SttlConfig config, final boolean trig) {
+        this.out = new Utf8IndentedWriter(out);
+        // prefixes are written before the triples are known
+        this.config = config.withAllPrefixes();
+        this.trig = trig;
+    }
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void base(final String base) {
+        if (shell == null)
+            this.baseURI = base;
+    }
+
+    @Override
+    public void prefix(final String prefix, final String iri) {
+        if (shell == null)
+            prefixMap.add(prefix, iri);
+    }
+
+    @Override
+    public void triple(final Triple triple) {
+        add(null, triple);
+    }
+
+    @Override
+    public void quad(final Quad quad) {
+        if (quad.isDefaultGraph()) {
+            add(null, quad.asTriple());
+            return;
+        }
+        if (!trig)
+            throw new RiotException("Quads in named graphs cannot be written in Turtle: " + quad);
+        add(quad.getGraph(), quad.asTriple());
+    }
+
+    @Override
+    public void finish() {
+        writeBlock();
+        getShell().endGraph(trig);
+        shell.flush();
+    }
+
+    private StreamShell getShell() {
+        if (shell == null)
+            shell = new StreamShell(out, prefixMap, baseURI, config, labeledBNodes);
+        return shell;
+    }
+
+    private void add(final Node graphName, final Triple t) {
+        getShell();
+        final Node s = t.getSubject();
+        if (!Objects.equals(graphName, blockGraphName)) {
+            writeBlock();
+            shell.endGraph(trig);
+            blockGraphName = graphName;
+            blockSubject = null;
+        } else if (!s.isBlank() && !s.equals(blockSubject)) {
+            if (nbOpenBNodes == 0) {
+                writeBlock();
+            } else if (block.size() >= MAX_OPEN_BLOCK_SIZE) {
+                labelOpenBNodes();
+                writeBlock();
+            }
+        }
+        if (!s.isBlank())
+            blockSubject = s;
+        else if (!labeledBNodes.contains(s) && bnodeSubjects.add(s))
+            nbOpenBNodes += bnodeObjects.contains(s) ? -1 : 1;
+        final Node o = t.getObject();
+        if (o.isBlank() && !labeledBNodes.contains(o) && bnodeObjects.add(o))
+            nbOpenBNodes += bnodeSubjects.contains(o) ? -1 : 1;
+        block.add(t);
+    }
+
+    private void writeBlock() {
+        if (block.isEmpty())
+            return;
+        shell.writeBlock(block, blockGraphName, trig);
+        block = GraphMemFactory.createDefaultGraph();
+        bnodeSubjects.clear();
+        bnodeObjects.clear();
+        nbOpenBNodes = 0;
+    }
+
+    // the blank nodes used only as subject or only as object in the block
+    private void labelOpenBNodes() {
+        for (Node n : bnodeSubjects) {
+            if (!bnodeObjects.contains(n))
+                labeledBNodes.add(n);
+        }
+        for (Node n : bnodeObjects) {
+            if (!bnodeSubjects.contains(n))
+                labeledBNodes.add(n);
+        }
+    }
+}
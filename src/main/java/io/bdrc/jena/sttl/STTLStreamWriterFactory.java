@@ -0,0 +1,25 @@
+package io.bdrc.jena.sttl;
+
+import java.io.OutputStream;
+
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriterFactory;
+import org.apache.jena.sparql.util.Context;
+
+/**
+* A streaming sorted TTL / TriG Writer Factory.
+*  
+* @author Elie Roux
+* @author Buddhist Digital Resource Center (BDRC)
+* @version 0.1.0
+*/
+public class STTLStreamWriterFactory implements StreamRDFWriterFactory {
+
+    @Override
+    public StreamRDF create(OutputStream output, RDFFormat format, Context context) {
+        final boolean trig = STriGWriter.lang != null && STriGWriter.lang.equals(format.getLang());
+        return new STTLStreamWriter(output, context, trig) ;
+    }
+
+}
@@ -1,13 +1,18 @@
 package io.bdrc.jena.sttl;
 
+import java.io.OutputStream;
+import java.io.Writer;
+
 import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.graph.Graph;
+import org.apache.jena.irix.IRIs;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.LangBuilder;
 import org.apache.jena.riot.RDFFormat;
 import org.apache.jena.riot.RDFLanguages;
 import org.apache.jena.riot.RDFWriterRegistry;
 import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.StreamRDFWriter;
 import org.apache.jena.riot.writer.TurtleWriterBase;
 import org.apache.jena.sparql.util.Context;
 
@@ -28,6 +33,21 @@ public class STTLWriter extends TurtleWriterBase {
     * Prefix for Symbol creation in contexts.
     */
     public static final String SYMBOLS_NS = "http://bdrc.io/sttl#" ;
+
+    private final SttlConfig config;
+
+    public STTLWriter() {
+        this(null);
+    }
+
+    /**
+    * @param config
+    * the configuration of the writes, null to read the options of the context
+    * of each write
+    */
+    public STTLWriter(SttlConfig config) {
+        this.config = config;
+    }
     
     /**
      * Registers the writer components using "STTL" as name
@@ -57,6 +77,7 @@ public class STTLWriter extends TurtleWriterBase {
         RDFFormat format = new RDFFormat(lang);
         RDFWriterRegistry.register(lang, format);
         RDFWriterRegistry.register(format, new STTLWriterFactory());
+        StreamRDFWriter.register(format, new STTLStreamWriterFactory());
         return lang;
     }
     
@@ -65,9 +86,41 @@ public class STTLWriter extends TurtleWriterBase {
         return lang;
     }
 
+    @Override
+    public void write(OutputStream out, Graph graph, PrefixMap prefixMap, String baseURI, Context context) {
+        final WriterMetrics metrics = WriterMetrics.get();
+        if (metrics == null) {
+            writeBytes(out, graph, prefixMap, baseURI, context);
+            return;
+        }
+        final WriterMetrics.CountingOutputStream cout = new WriterMetrics.CountingOutputStream(out);
+        final long start = System.nanoTime();
+        writeBytes(cout, graph, prefixMap, baseURI, context);
+        metrics.graphWritten(graph.size(), cout.count, System.nanoTime() - start);
+    }
+
+    // as in the base class, without going through a java.io.Writer
+    private void writeBytes(OutputStream out, Graph graph, PrefixMap prefixMap, String baseURI, Context context) {
+        final Utf8IndentedWriter iOut = new Utf8IndentedWriter(out);
+        output(iOut, graph, prefixMap, (baseURI == null) ? null : IRIs.resolve(baseURI), context);
+        iOut.flush();
+    }
+
+    @Override
+    public void write(Writer out, Graph graph, PrefixMap prefixMap, String baseURI, Context context) {
+        final WriterMetrics metrics = WriterMetrics.get();
+        if (metrics == null) {
+            super.write(out, graph, prefixMap, baseURI, context);
+            return;
+        }
+        final long start = System.nanoTime();
+        super.write(out, graph, prefixMap, baseURI, context);
+        metrics.graphWritten(graph.size(), 0, System.nanoTime() - start);
+    }
+
     @Override
     protected void output(IndentedWriter iOut, Graph graph, PrefixMap prefixMap, String baseURI, Context context) {
-        TurtleShell w = new TurtleShell(iOut, prefixMap, baseURI, context) ;
+        TurtleShell w = new TurtleShell(iOut, prefixMap, baseURI, (config != null) ? config : SttlConfig.of(context)) ;
         w.write(graph) ;
     }
 
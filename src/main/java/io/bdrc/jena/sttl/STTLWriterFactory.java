@@ -13,9 +13,26 @@ import org.apache.jena.riot.WriterGraphRIOTFactory;
 */
 public class STTLWriterFactory implements WriterGraphRIOTFactory {
 
+    private final SttlConfig config;
+
+    public STTLWriterFactory() {
+        this(null);
+    }
+
+    /**
+    * Factory of writers using a configuration built once, instead of the
+    * options of the context of each write.
+    * 
+    * @param config
+    * the configuration, null to read the options of the context
+    */
+    public STTLWriterFactory(SttlConfig config) {
+        this.config = config;
+    }
+
     @Override
     public WriterGraphRIOT create(RDFFormat syntaxForm) {
-        return new STTLWriter() ;
+        return new STTLWriter(config) ;
     }
 
 }
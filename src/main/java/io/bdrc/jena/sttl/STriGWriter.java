@@ -1,8 +1,15 @@
 package io.bdrc.jena.sttl;
 
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Iterator;
+
 import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.Node;
+import org.apache.jena.irix.IRIs;
 import org.apache.jena.riot.*;
 import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.StreamRDFWriter;
 import org.apache.jena.riot.writer.TriGWriterBase;
 import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.util.Context;
@@ -20,6 +27,21 @@ public class STriGWriter extends TriGWriterBase {
     * Lang associated with this writer.
     */
     public static Lang lang = null;
+
+    private final SttlConfig config;
+
+    public STriGWriter() {
+        this(null);
+    }
+
+    /**
+    * @param config
+    * the configuration of the writes, null to read the options of the context
+    * of each write
+    */
+    public STriGWriter(SttlConfig config) {
+        this.config = config;
+    }
     /**
     * Prefix for Symbol creation in contexts.
     */
@@ -53,6 +75,7 @@ public class STriGWriter extends TriGWriterBase {
         RDFFormat format = new RDFFormat(lang);
         RDFWriterRegistry.register(lang, format);
         RDFWriterRegistry.register(format, new STriGWriterFactory());
+        StreamRDFWriter.register(format, new STTLStreamWriterFactory());
         return lang;
     }
     
@@ -61,9 +84,49 @@ public class STriGWriter extends TriGWriterBase {
         return lang;
     }
 
+    private static long nbQuads(DatasetGraph dsg) {
+        long res = dsg.getDefaultGraph().size();
+        Iterator<Node> graphNames = dsg.listGraphNodes();
+        while (graphNames.hasNext())
+            res += dsg.getGraph(graphNames.next()).size();
+        return res;
+    }
+
+    @Override
+    public void write(OutputStream out, DatasetGraph dsg, PrefixMap prefixMap, String baseURI, Context context) {
+        final WriterMetrics metrics = WriterMetrics.get();
+        if (metrics == null) {
+            writeBytes(out, dsg, prefixMap, baseURI, context);
+            return;
+        }
+        final WriterMetrics.CountingOutputStream cout = new WriterMetrics.CountingOutputStream(out);
+        final long start = System.nanoTime();
+        writeBytes(cout, dsg, prefixMap, baseURI, context);
+        metrics.datasetWritten(nbQuads(dsg), cout.count, System.nanoTime() - start);
+    }
+
+    // as in the base class, without going through a java.io.Writer
+    private void writeBytes(OutputStream out, DatasetGraph dsg, PrefixMap prefixMap, String baseURI, Context context) {
+        final Utf8IndentedWriter iOut = new Utf8IndentedWriter(out);
+        output(iOut, dsg, prefixMap, (baseURI == null) ? null : IRIs.resolve(baseURI), context);
+        iOut.flush();
+    }
+
+    @Override
+    public void write(Writer out, DatasetGraph dsg, PrefixMap prefixMap, String baseURI, Context context) {
+        final WriterMetrics metrics = WriterMetrics.get();
+        if (metrics == null) {
+            super.write(out, dsg, prefixMap, baseURI, context);
+            return;
+        }
+        final long start = System.nanoTime();
+        super.write(out, dsg, prefixMap, baseURI, context);
+        metrics.datasetWritten(nbQuads(dsg), 0, System.nanoTime() - start);
+    }
+
     @Override
     protected void output(IndentedWriter iOut, DatasetGraph graph, PrefixMap prefixMap, String baseURI, Context context) {
-        TriGShell w = new TriGShell(iOut, prefixMap, baseURI, context) ;
+        TriGShell w = new TriGShell(iOut, prefixMap, baseURI, (config != null) ? config : SttlConfig.of(context)) ;
         w.write(graph) ;
     }
 
@@ -13,9 +13,26 @@ import org.apache.jena.riot.WriterDatasetRIOTFactory;
 */
 public class STriGWriterFactory implements WriterDatasetRIOTFactory {
 
+    private final SttlConfig config;
+
+    public STriGWriterFactory() {
+        this(null);
+    }
+
+    /**
+    * Factory of writers using a configuration built once, instead of the
+    * options of the context of each write.
+    * 
+    * @param config
+    * the configuration, null to read the options of the context
+    */
+    public STriGWriterFactory(SttlConfig config) {
+        this.config = config;
+    }
+
     @Override
     public WriterDatasetRIOT create(RDFFormat syntaxForm) {
-        return new STriGWriter() ;
+        return new STriGWriter(config) ;
     }
 
 }
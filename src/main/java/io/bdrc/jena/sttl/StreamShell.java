@@ -0,0 +1,72 @@
+package io.bdrc.jena.sttl;
+
+import java.util.Set;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.riot.system.PrefixMap;
+
+/**
+ * Writes a document block by block, for {@link STTLStreamWriter}.
+ */
+class StreamShell extends TriGShell {
+
+    private int nbPrefixesWritten = 0;
+    private boolean anyOutput = false;
+    private boolean graphOpen = false;
+    private boolean anyGraphOutput = false;
+    private boolean anyBlockOutput = false;
+    private Node graphName = null;
+    // blank nodes with triples in several blocks
+    private final Set<Node> labeledBNodes;
+
+    StreamShell(final IndentedWriter out, final PrefixMap prefixMap, final String baseURI, final SttlConfig config, final Set<Node> labeledBNodes) {
+        super(out, prefixMap, baseURI, config);
+        this.labeledBNodes = labeledBNodes;
+        writeBase(baseURI);
+        this.nbPrefixesWritten = writePrefixes(prefixMap);
+    }
+
+    /** Write the triples of a block, in the graph block of graphName if trig is true */
+    void writeBlock(final Graph block, final Node graphName, final boolean trig) {
+        if (!anyOutput && nbPrefixesWritten > 0)
+            out.println();
+        anyOutput = true;
+        if (!graphOpen) {
+            if (anyGraphOutput)
+                out.println();
+            if (trig)
+                startGraphTriG(graphName);
+            this.graphName = graphName;
+            graphOpen = true;
+            anyBlockOutput = false;
+        } else if (anyBlockOutput) {
+            out.println();
+        }
+        final boolean written = writeGraphTTL(block);
+        anyBlockOutput |= written;
+        anyGraphOutput |= written;
+    }
+
+    @Override
+    protected boolean labeledBNode(final Node node) {
+        return labeledBNodes.contains(node);
+    }
+
+    /** Close the current graph block if any */
+    void endGraph(final boolean trig) {
+        if (!graphOpen)
+            return;
+        if (trig)
+            endGraphTriG(graphName);
+        graphOpen = false;
+    }
+
+    /** End of the document */
+    void flush() {
+        out.flush();
+        if (stats != null)
+            stats.writeEnded();
+    }
+}
@@ -0,0 +1,207 @@
+package io.bdrc.jena.sttl;
+
+import static org.apache.jena.riot.writer.WriterConst.LONG_SUBJECT;
+import static org.apache.jena.riot.writer.WriterConst.PREFIX_IRI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jena.atlas.io.IndentedLineBuffer;
+import org.apache.jena.riot.RIOT;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.Symbol;
+import org.apache.jena.sys.JenaSystem;
+
+/**
+* The options of the writers, read once from a context.
+*
+* Reading the options, ranking the predicates and rendering the prefixes is
+* done on each write when the writer is given a context. Services writing many
+* small graphs can build a configuration once and give it to the writers, either
+* with the symbol {@link #SYMBOL} of the context or directly, see
+* {@link STTLWriterFactory#STTLWriterFactory(SttlConfig)}. The configuration is
+* immutable and can be shared by all the threads.
+*/
+public final class SttlConfig {
+
+    static { JenaSystem.init(); }
+
+    /**
+    * Symbol of the configuration in a context, its other writer options are then
+    * ignored.
+    */
+    public static final Symbol SYMBOL = Symbol.create(STTLWriter.SYMBOLS_NS + "config");
+
+    // maximum number of prefix headers kept
+    private static final int MAX_HEADERS = 64;
+    // consecutive subjects rendered by one task in parallel rendering
+    private static final int DEFAULT_PARALLEL_CHUNK_SIZE = 32;
+
+    final boolean onlyWriteUsedPrefixes;
+    final boolean multilineLiterals;
+    final NodeTextCache nodeTextCache;
+    final WriteListener writeListener;
+    final SortedMap<String, Integer> nsPriorities;
+    final int nsDefaultPriority;
+    final ComparePredicates compPredicates;
+    final List<String> complexPredicatesPriorities;
+    final int collationKeyCacheSize;
+    final int indentBase;
+    final int predicateBaseWidth;
+    final int longSubject;
+    final boolean objectsMultiLine;
+    final boolean namedDotNewLine;
+    final boolean canonicalBNodes;
+    final long sortMemoryBudget;
+    final boolean parallelRendering;
+    final int parallelChunkSize;
+    final boolean parallelGraphs;
+    final FragmentCache fragmentCache;
+    final int fileBufferSize;
+    final boolean forceFileOutput;
+    final boolean writeBase;
+
+    // prefix declarations by mapping, see prefixHeader
+    private final Map<Map<String, String>, String> headers = new ConcurrentHashMap<>();
+
+    private SttlConfig(final Context context) {
+        this.onlyWriteUsedPrefixes = context.isTrue(symbol("onlyWriteUsedPrefixes"));
+        this.multilineLiterals = context.isTrue(RIOT.multilineLiterals);
+        this.nodeTextCache = context.get(symbol("nodeTextCache"));
+        this.writeListener = context.get(symbol("writeListener"));
+        SortedMap<String, Integer> priorities = ComparePredicates.getDefaultNSPriorities();
+        int defaultPriority = 2;
+        final SortedMap<String, Integer> nsPriorities = context.get(symbol("nsPriorities"));
+        final Integer nsDefaultPriority = context.get(symbol("nsDefaultPriority"));
+        if (nsPriorities != null && nsDefaultPriority != null) {
+            priorities = nsPriorities;
+            defaultPriority = nsDefaultPriority;
+        }
+        this.nsPriorities = Collections.unmodifiableSortedMap(new TreeMap<>(priorities));
+        this.nsDefaultPriority = defaultPriority;
+        this.compPredicates = ComparePredicates.forPriorities(this.nsPriorities, this.nsDefaultPriority);
+        final List<String> complexPriorities = context.get(symbol("complexPredicatesPriorities"));
+        this.complexPredicatesPriorities = (complexPriorities == null) ? null : Collections.unmodifiableList(new ArrayList<>(complexPriorities));
+        this.collationKeyCacheSize = context.getInt(symbol("collationKeyCacheSize"), 0);
+        this.indentBase = context.getInt(symbol("indentBase"), 4);
+        this.predicateBaseWidth = context.getInt(symbol("predicateBaseWidth"), 14);
+        this.longSubject = context.getInt(symbol("longSubject"), LONG_SUBJECT);
+        this.objectsMultiLine = context.isTrue(symbol("objectsMultiLine"));
+        this.namedDotNewLine = context.isTrue(symbol("namedDotNewLine"));
+        this.canonicalBNodes = context.isTrue(symbol("canonicalBNodes"));
+        this.sortMemoryBudget = context.getLong(symbol("sortMemoryBudget"), 0);
+        this.parallelRendering = context.isTrue(symbol("parallelRendering"));
+        this.parallelChunkSize = Math.max(1, context.getInt(symbol("parallelChunkSize"), DEFAULT_PARALLEL_CHUNK_SIZE));
+        this.parallelGraphs = context.isTrue(symbol("parallelGraphs"));
+        this.fragmentCache = context.get(symbol("fragmentCache"));
+        this.fileBufferSize = context.getInt(symbol("fileBufferSize"), AsyncFileOutputStream.DEFAULT_BUFFER_SIZE);
+        this.forceFileOutput = context.isTrue(symbol("forceFileOutput"));
+        this.writeBase = !context.isFalse(symbol("writeBase"));
+    }
+
+    private SttlConfig(final SttlConfig other, final boolean onlyWriteUsedPrefixes) {
+        this.onlyWriteUsedPrefixes = onlyWriteUsedPrefixes;
+        this.multilineLiterals = other.multilineLiterals;
+        this.nodeTextCache = other.nodeTextCache;
+        this.writeListener = other.writeListener;
+        this.nsPriorities = other.nsPriorities;
+        this.nsDefaultPriority = other.nsDefaultPriority;
+        this.compPredicates = other.compPredicates;
+        this.complexPredicatesPriorities = other.complexPredicatesPriorities;
+        this.collationKeyCacheSize = other.collationKeyCacheSize;
+        this.indentBase = other.indentBase;
+        this.predicateBaseWidth = other.predicateBaseWidth;
+        this.longSubject = other.longSubject;
+        this.objectsMultiLine = other.objectsMultiLine;
+        this.namedDotNewLine = other.namedDotNewLine;
+        this.canonicalBNodes = other.canonicalBNodes;
+        this.sortMemoryBudget = other.sortMemoryBudget;
+        this.parallelRendering = other.parallelRendering;
+        this.parallelChunkSize = other.parallelChunkSize;
+        this.parallelGraphs = other.parallelGraphs;
+        this.fragmentCache = other.fragmentCache;
+        this.fileBufferSize = other.fileBufferSize;
+        this.forceFileOutput = other.forceFileOutput;
+        this.writeBase = other.writeBase;
+    }
+
+    private static Symbol symbol(final String name) {
+        return Symbol.create(STTLWriter.SYMBOLS_NS + name);
+    }
+
+    /**
+    * Reads the writer options of a context, see the README for their names.
+    *
+    * @param context
+    * the context, null for the default options
+    * @return
+    * the configuration
+    */
+    public static SttlConfig fromContext(final Context context) {
+        return new SttlConfig((context == null) ? new Context() : context);
+    }
+
+    /**
+    * @return
+    * the configuration given in the context with {@link #SYMBOL}, or read from
+    * its options
+    */
+    static SttlConfig of(final Context context) {
+        if (context != null) {
+            final SttlConfig res = context.get(SYMBOL);
+            if (res != null)
+                return res;
+        }
+        return fromContext(context);
+    }
+
+    /**
+    * @return
+    * the same configuration writing all the prefixes, for the streaming writer
+    */
+    SttlConfig withAllPrefixes() {
+        return this.onlyWriteUsedPrefixes ? new SttlConfig(this, false) : this;
+    }
+
+    /**
+    * @return
+    * the "@prefix" lines of the mapping, in the order of the prefixes
+    */
+    String prefixHeader(final Map<String, String> mapping) {
+        String res = this.headers.get(mapping);
+        if (res == null) {
+            final List<String> sortedKeys = new ArrayList<String>(mapping.keySet());
+            Collections.sort(sortedKeys);
+            final IndentedLineBuffer out = new IndentedLineBuffer();
+            for (String prefix : sortedKeys) {
+                out.print("@prefix ");
+                out.print(prefix);
+                out.print(": ");
+                out.pad(PREFIX_IRI);
+                out.print("<");
+                out.print(mapping.get(prefix));
+                out.print(">");
+                out.print(" .");
+                out.println();
+            }
+            res = out.asString();
+            if (this.headers.size() >= MAX_HEADERS)
+                this.headers.clear();
+            this.headers.put(mapping, res);
+        }
+        return res;
+    }
+
+    // the options that change the text of a subject, see FragmentCache
+    List<Object> renderingOptions() {
+        return Arrays.asList(multilineLiterals, indentBase, predicateBaseWidth, longSubject, objectsMultiLine, namedDotNewLine,
+                nsPriorities, nsDefaultPriority, complexPredicatesPriorities);
+    }
+
+}
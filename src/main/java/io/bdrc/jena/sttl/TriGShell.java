@@ -19,11 +19,14 @@
 
 package io.bdrc.jena.sttl;
 
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static org.apache.jena.riot.writer.WriterConst.GDFT_BRACE ;
 import static org.apache.jena.riot.writer.WriterConst.INDENT_GDFT ;
@@ -38,60 +41,109 @@ import org.apache.jena.graph.Node;
 import org.apache.jena.riot.system.PrefixMap;
 import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.Quad;
-import org.apache.jena.sparql.util.Context;
 
 class TriGShell extends TurtleShell
 {
-    TriGShell(final IndentedWriter out, final PrefixMap prefixMap, final String baseURI, final Context context) {
-        super(out, prefixMap, baseURI, context) ;
+    TriGShell(final IndentedWriter out, final PrefixMap prefixMap, final String baseURI, final SttlConfig config) {
+        super(out, prefixMap, baseURI, config) ;
     }
 
     void write(final DatasetGraph dsg) {
+        if (canonical_bnodes) {
+            WriteStats.Mark mark = beginPhase() ;
+            setCanonicalBNodes(CanonicalBNodes.of(dsg)) ;
+            endPhase(WriteStats.Phase.CANONICAL_BNODES, null, mark) ;
+        }
         writeBase(baseURI) ;
-        if (this.onlyWriteUsedPrefixes) {
-            final IndentedWriter savedOut = this.out;
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final IndentedWriter buffedOut = new IndentedWriter(baos);
-            // buffedOut is always at indentation 0 at this point
-            this.out = buffedOut;
-            final Iterator<Node> graphNamesI = dsg.listGraphNodes() ;
-            final List<Node> graphNames = new ArrayList<>();
-            graphNamesI.forEachRemaining(graphNames::add);
-            Collections.sort(graphNames, compLiterals);
-    
-            boolean anyGraphOutput = writeGraphTriG(dsg, null) ;
-    
-            for ( final Node gn : graphNames ) {
-                if ( anyGraphOutput )
-                    out.println() ;
-                anyGraphOutput |= writeGraphTriG(dsg, gn) ;
-            }
-            this.out = savedOut;
-            int nbPrefixesWritten = writePrefixes(prefixMap) ;
-            if ( nbPrefixesWritten > 0 && !dsg.isEmpty() )
-                out.println() ;
-            buffedOut.flush();
-            this.out.print(baos.toString());
-        } else {
-            int nbPrefixesWritten = writePrefixes(prefixMap) ;
-            if ( nbPrefixesWritten > 0 && !dsg.isEmpty() )
+        if ( this.onlyWriteUsedPrefixes ) {
+            WriteStats.Mark mark = beginPhase() ;
+            scanGraphs(dsg) ;
+            endPhase(WriteStats.Phase.PREFIX_SCAN, null, mark) ;
+        }
+        int nbPrefixesWritten = writePrefixes(prefixMap) ;
+        if ( nbPrefixesWritten > 0 && !dsg.isEmpty() )
+            out.println() ;
+
+        writeGraphs(dsg) ;
+        if ( stats != null )
+            stats.writeEnded() ;
+    }
+
+    // Records the prefixes used by the graphs, see TurtleShell.scanGraphTTL
+    private void scanGraphs(final DatasetGraph dsg) {
+        scanGraphTTL(dsg, null) ;
+        final Iterator<Node> graphNamesI = dsg.listGraphNodes() ;
+        while ( graphNamesI.hasNext() ) {
+            final Node gn = graphNamesI.next() ;
+            scanNode(gn) ;
+            scanGraphTTL(dsg, gn) ;
+        }
+    }
+
+    private void writeGraphs(final DatasetGraph dsg) {
+        final Iterator<Node> graphNamesI = dsg.listGraphNodes() ;
+        final List<Node> graphNames = new ArrayList<>();
+        graphNamesI.forEachRemaining(graphNames::add);
+        Collections.sort(graphNames, counted(compLiterals));
+
+        if ( parallel_graphs ) {
+            writeGraphsParallel(dsg, graphNames) ;
+            return ;
+        }
+
+        boolean anyGraphOutput = writeGraphTriG(dsg, null) ;
+
+        for ( final Node gn : graphNames ) {
+            if ( anyGraphOutput )
                 out.println() ;
-    
-            final Iterator<Node> graphNamesI = dsg.listGraphNodes() ;
-            final List<Node> graphNames = new ArrayList<>();
-            graphNamesI.forEachRemaining(graphNames::add);
-            Collections.sort(graphNames, compLiterals);
-    
-            boolean anyGraphOutput = writeGraphTriG(dsg, null) ;
-    
-            for ( final Node gn : graphNames ) {
-                if ( anyGraphOutput )
-                    out.println() ;
-                anyGraphOutput |= writeGraphTriG(dsg, gn) ;
+            anyGraphOutput |= writeGraphTriG(dsg, gn) ;
+        }
+    }
+
+    // Same output as writeGraphs: the graphs are rendered in their own buffers
+    // by tasks of the common ForkJoinPool, a bounded number of graphs ahead of
+    // the one being written.
+    private void writeGraphsParallel(final DatasetGraph dsg, final List<Node> graphNames) {
+        // built once, before the tasks share it
+        datasetIndex(dsg) ;
+        final List<Node> names = new ArrayList<>(graphNames.size() + 1) ;
+        if ( !dsg.getDefaultGraph().isEmpty() )
+            names.add(null) ;
+        names.addAll(graphNames) ;
+
+        final int window = 4 * ForkJoinPool.commonPool().getParallelism() ;
+        final Deque<ForkJoinTask<RenderedGraph>> pending = new ArrayDeque<>() ;
+        final int baseIndent = out.getAbsoluteIndent() ;
+        int next = 0 ;
+        boolean anyGraphOutput = false ;
+        for ( final Node gn : names ) {
+            while ( next < names.size() && pending.size() < window ) {
+                final Node name = names.get(next++) ;
+                final int indent = baseIndent + graphIndent(name) ;
+                pending.add(ForkJoinPool.commonPool().submit(() -> renderGraphTTL(dsg, name, indent))) ;
             }
+            final RenderedGraph rendered = pending.poll().join() ;
+            if ( anyGraphOutput )
+                out.println() ;
+            anyGraphOutput = true ;
+            startGraphTriG(gn) ;
+            if ( rendered.labelsWritten )
+                // blank node labels must be given in order
+                writeGraphTTL(dsg, gn) ;
+            else
+                printRendered(rendered.text) ;
+            endGraphTriG(gn) ;
         }
     }
 
+    /** Indentation of the triples of a graph */
+    protected int graphIndent(final Node name) {
+        boolean dftGraph =  ( name == null || name == Quad.defaultGraphNodeGenerated  ) ;
+        if ( dftGraph && ! GDFT_BRACE )
+            return 0 ;
+        return dftGraph ? INDENT_GDFT : INDENT_GNMD ;
+    }
+
     /** Return true if anything written */
     private boolean writeGraphTriG(final DatasetGraph dsg, final Node name) {
         boolean dftGraph =  ( name == null || name == Quad.defaultGraphNodeGenerated  ) ;
@@ -99,17 +151,24 @@ class TriGShell extends TurtleShell
         if ( dftGraph && dsg.getDefaultGraph().isEmpty() )
             return false ;
         
-        if ( dftGraph && ! GDFT_BRACE ) {
+        startGraphTriG(name) ;
+        writeGraphTTL(dsg, name) ;
+        endGraphTriG(name) ;
+        return true ;
+    }
+
+    /** Write what comes before the triples of a graph, "name {" for named graphs */
+    protected void startGraphTriG(final Node name) {
+        boolean dftGraph =  ( name == null || name == Quad.defaultGraphNodeGenerated  ) ;
+
+        if ( dftGraph && ! GDFT_BRACE )
             // Non-empty default graph, no braces.
             // No indenting.
-            writeGraphTTL(dsg, name) ;
-            return true ;
-        }
+            return ;
         
         // The graph will go in braces, whether non-empty default graph or a named graph. 
         final boolean NL_START =  ( dftGraph ? NL_GDFT_START : NL_GNMD_START ) ; 
-        final boolean NL_END =    ( dftGraph ? NL_GDFT_END : NL_GNMD_END ) ; 
-        final int INDENT_GRAPH =  ( dftGraph ? INDENT_GDFT : INDENT_GNMD ) ; 
+        final int INDENT_GRAPH =  graphIndent(name) ; 
 
         if ( !dftGraph ) {
             writeNode(name) ;
@@ -123,12 +182,22 @@ class TriGShell extends TurtleShell
             out.print(" ") ;
 
         out.incIndent(INDENT_GRAPH) ;
-        writeGraphTTL(dsg, name) ;
+    }
+
+    /** Write what comes after the triples of a graph */
+    protected void endGraphTriG(final Node name) {
+        boolean dftGraph =  ( name == null || name == Quad.defaultGraphNodeGenerated  ) ;
+
+        if ( dftGraph && ! GDFT_BRACE )
+            return ;
+
+        final boolean NL_END =    ( dftGraph ? NL_GDFT_END : NL_GNMD_END ) ; 
+        final int INDENT_GRAPH =  graphIndent(name) ; 
+
         out.decIndent(INDENT_GRAPH) ;
 
         if ( NL_END )
             out.ensureStartOfLine() ;
         out.println("}") ;
-        return true ;
     }
-}
\ No newline at end of file
+}
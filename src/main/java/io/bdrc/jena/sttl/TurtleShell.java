@@ -24,7 +24,6 @@ import static org.apache.jena.riot.writer.WriterConst.GAP_S_P;
 import static org.apache.jena.riot.writer.WriterConst.LONG_PREDICATE;
 import static org.apache.jena.riot.writer.WriterConst.LONG_SUBJECT;
 import static org.apache.jena.riot.writer.WriterConst.OBJECT_LISTS;
-import static org.apache.jena.riot.writer.WriterConst.PREFIX_IRI;
 import static org.apache.jena.riot.writer.WriterConst.RDF_First;
 import static org.apache.jena.riot.writer.WriterConst.RDF_Nil;
 import static org.apache.jena.riot.writer.WriterConst.RDF_Rest;
@@ -32,7 +31,12 @@ import static org.apache.jena.riot.writer.WriterConst.RDF_type;
 import static org.apache.jena.riot.writer.WriterConst.rdfNS;
 
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.Collator;
+import java.text.RuleBasedCollator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -41,20 +45,26 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.jena.atlas.io.AWriter;
+import org.apache.jena.atlas.io.IndentedLineBuffer;
 import org.apache.jena.atlas.io.IndentedWriter;
-import org.apache.jena.atlas.iterator.Iter;
 import org.apache.jena.atlas.lib.InternalErrorException;
 import org.apache.jena.atlas.lib.Pair;
 import org.apache.jena.atlas.lib.SetUtils;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
+import org.apache.jena.graph.TextDirection;
 import org.apache.jena.graph.Triple;
-import org.apache.jena.riot.RIOT;
+import org.apache.jena.riot.out.NodeFmtLib;
 import org.apache.jena.riot.out.NodeFormatter;
 import org.apache.jena.riot.out.NodeFormatterTTL;
 import org.apache.jena.riot.out.NodeFormatterTTL_MultiLine;
@@ -66,7 +76,6 @@ import org.apache.jena.riot.writer.DirectiveStyle;
 import org.apache.jena.sparql.core.DatasetGraph;
 import org.apache.jena.sparql.core.Quad;
 import org.apache.jena.sparql.util.Context;
-import org.apache.jena.sparql.util.Symbol;
 import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
@@ -76,6 +85,7 @@ import org.apache.jena.util.iterator.ExtendedIterator;
 public class TurtleShell {
     protected IndentedWriter out;
     protected final NodeFormatter nodeFmt;
+    private final boolean multiline_literals;
     protected final PrefixMap prefixMap;
     protected final String baseURI;
     protected final Boolean onlyWriteUsedPrefixes;
@@ -85,54 +95,163 @@ public class TurtleShell {
     protected int long_subject = LONG_SUBJECT;
     protected boolean objects_multi_line = false;
     protected boolean named_dot_new_line = false;
-
-    private Comparator<Node> compPredicates;
-    protected static final Comparator<Node> compLiterals = new CompareLiterals();
+    protected boolean canonical_bnodes = false;
+    protected long sort_memory_budget = 0;
+    protected boolean parallel_rendering = false;
+    protected boolean parallel_graphs = false;
+    // shared cache of formatted URIs and its table for this base and these
+    // prefixes, null if not used
+    private final NodeTextCache nodeTextCache;
+    private final Map<String, String> nodeTextTable;
+    // statistics of the write, null if not measured, see WriteStats
+    protected final WriteStats stats;
+    protected final SttlConfig config;
+    private final FragmentCache fragmentCache;
+    // hash of the configuration, part of the keys of the fragment cache
+    private final String fragmentConfig;
+
+    // number of subjects taken from the sorted subjects for each parallel round
+    private static final int PARALLEL_BATCH = 1 << 12;
+    // maximum number of URIs formatted against a base kept by a formatter
+    private static final int URI_CACHE_SIZE = 1 << 14;
+
+    private ComparePredicates compPredicates;
+    protected final CompareLiterals compLiterals;
     private List<String> complexPredicatesPriorities = null;
 
+    // Canonical order and labels of blank nodes, null if not used
+    protected CanonicalBNodes canonicalBNodes = null;
+
+    // Graphs of the dataset analyzed by scanGraphTTL, by name, written by
+    // writeGraphTTL or renderGraphTTL without being analyzed again
+    private final Map<Node, ShellGraph> scannedGraphs = new ConcurrentHashMap<>();
+    // formatter and output of the scan for the used prefixes
+    private NodeFormatter scanFmt = null;
+    private IndentedWriter scanSink = null;
+
+    // Blank node index of the dataset being written, shared by all the
+    // graphs of the dataset
+    private DatasetBNodeIndex dsgIndex = null;
+
     protected TurtleShell(final IndentedWriter out, PrefixMap pmap, final String baseURI, final Context context) {
+        this(out, pmap, baseURI, SttlConfig.of(context));
+    }
+
+    protected TurtleShell(final IndentedWriter out, PrefixMap pmap, final String baseURI, final SttlConfig config) {
         this.out = out;
+        this.config = config;
         if (pmap == null)
             pmap = PrefixMapFactory.emptyPrefixMap();
-        this.onlyWriteUsedPrefixes = context.get(Symbol.create(STTLWriter.SYMBOLS_NS + "onlyWriteUsedPrefixes"), false);
-        if (this.onlyWriteUsedPrefixes) {
+        this.onlyWriteUsedPrefixes = config.onlyWriteUsedPrefixes;
+        if (this.onlyWriteUsedPrefixes)
             pmap = new CheckedPrefixMap(pmap);
-        }
         this.prefixMap = pmap;
         this.baseURI = baseURI;
-        if (context != null && context.isTrue(RIOT.multilineLiterals))
-            this.nodeFmt = new NodeFormatterTTL_MultiLine(baseURI, pmap, NodeToLabel.createScopeByDocument());
-        else
-            this.nodeFmt = new NodeFormatterTTL(baseURI, pmap, NodeToLabel.createScopeByDocument());
-        Symbol s = Symbol.create(STTLWriter.SYMBOLS_NS + "nsPriorities");
-        if (context != null && context.isDefined(s)) {
-            SortedMap<String, Integer> nsPriorities = context.get(s);
-            Integer nsDefaultPriority = context.get(Symbol.create(STTLWriter.SYMBOLS_NS + "nsDefaultPriority"));
-            if (nsDefaultPriority == null || nsPriorities == null)
-                this.compPredicates = new ComparePredicates();
-            else
-                this.compPredicates = new ComparePredicates(nsPriorities, nsDefaultPriority);
-        } else
-            this.compPredicates = new ComparePredicates();
-
-        s = Symbol.create(STTLWriter.SYMBOLS_NS + "complexPredicatesPriorities");
-        if (context != null && context.isDefined(s))
-            this.complexPredicatesPriorities = context.get(s);
-
-        s = Symbol.create(STTLWriter.SYMBOLS_NS + "indentBase");
-        this.indent_base = context.getInt(s, 4);
-        s = Symbol.create(STTLWriter.SYMBOLS_NS + "predicateBaseWidth");
-        this.predicate_base_width = context.getInt(s, 14);
-        s = Symbol.create(STTLWriter.SYMBOLS_NS + "longSubject");
-        this.long_subject = context.getInt(s, LONG_SUBJECT);
-        s = Symbol.create(STTLWriter.SYMBOLS_NS + "objectsMultiLine");
-        this.objects_multi_line = context.isTrue(s);
-        s = Symbol.create(STTLWriter.SYMBOLS_NS + "namedDotNewLine");
-        this.named_dot_new_line = context.isTrue(s);
+        this.multiline_literals = config.multilineLiterals;
+        this.nodeTextCache = config.nodeTextCache;
+        this.nodeTextTable = (this.nodeTextCache == null) ? null : this.nodeTextCache.table(baseURI, this.prefixMap.getMappingCopy(), this.onlyWriteUsedPrefixes);
+        this.nodeFmt = newNodeFormatter();
+        this.stats = WriteStats.create(config.writeListener);
+        this.compPredicates = config.compPredicates;
+        this.complexPredicatesPriorities = config.complexPredicatesPriorities;
+        this.compLiterals = new CompareLiterals(config.collationKeyCacheSize);
+        this.indent_base = config.indentBase;
+        this.predicate_base_width = config.predicateBaseWidth;
+        this.long_subject = config.longSubject;
+        this.objects_multi_line = config.objectsMultiLine;
+        this.named_dot_new_line = config.namedDotNewLine;
+        this.canonical_bnodes = config.canonicalBNodes;
+        this.sort_memory_budget = config.sortMemoryBudget;
+        this.parallel_rendering = config.parallelRendering;
+        this.parallel_graphs = config.parallelGraphs;
+        this.fragmentCache = config.fragmentCache;
+        this.fragmentConfig = (this.fragmentCache == null) ? null : fragmentConfig();
+    }
+
+    // what the text of a subject depends on besides its triples, see FragmentCache
+    private String fragmentConfig() {
+        Collator collator = CompareLiterals.getCollator();
+        String collation = collator.getClass().getName() + ' ' + collator.getStrength() + ' ' + collator.getDecomposition();
+        if (collator instanceof RuleBasedCollator)
+            collation += ' ' + DigestUtils.sha256Hex(((RuleBasedCollator) collator).getRules());
+        List<Object> key = Arrays.asList(FragmentCache.FORMAT_VERSION, baseURI, new TreeMap<>(prefixMap.getMappingCopy()),
+                onlyWriteUsedPrefixes, config.renderingOptions(), collation);
+        return DigestUtils.sha256Hex(key.toString());
     }
 
+    private NodeFormatter newNodeFormatter() {
+        if (baseURI == null && nodeTextTable == null) {
+            if (multiline_literals)
+                return new NodeFormatterTTL_MultiLine(baseURI, prefixMap, NodeToLabel.createScopeByDocument());
+            return new NodeFormatterTTL(baseURI, prefixMap, NodeToLabel.createScopeByDocument());
+        }
+        // relativizing each URI against the base is costly, the formatted URIs
+        // are kept (a formatter is only used by one thread), or shared between
+        // writers through the node text cache
+        final Map<String, String> formattedURIs = new HashMap<>();
+        if (multiline_literals)
+            return new NodeFormatterTTL_MultiLine(baseURI, prefixMap, NodeToLabel.createScopeByDocument()) {
+                @Override
+                public void formatURI(AWriter w, String uriStr) {
+                    w.print(formatURICached(formattedURIs, uriStr, x -> super.formatURI(x, uriStr)));
+                }
+            };
+        return new NodeFormatterTTL(baseURI, prefixMap, NodeToLabel.createScopeByDocument()) {
+            @Override
+            public void formatURI(AWriter w, String uriStr) {
+                w.print(formatURICached(formattedURIs, uriStr, x -> super.formatURI(x, uriStr)));
+            }
+        };
+    }
+
+    private static String formatURI(String uriStr, Consumer<AWriter> format) {
+        IndentedLineBuffer buffer = new IndentedLineBuffer();
+        format.accept(buffer);
+        return buffer.asString();
+    }
+
+    private String formatURICached(Map<String, String> cache, String uriStr, Consumer<AWriter> format) {
+        if (nodeTextTable != null) {
+            String res = nodeTextCache.get(nodeTextTable, uriStr, x -> formatURI(x, format));
+            // the text may come from another writer, the prefix must be
+            // recorded as used in this one
+            if (res.charAt(0) != '<' && prefixMap instanceof CheckedPrefixMap)
+                ((CheckedPrefixMap) prefixMap).markUsed(res.substring(0, res.indexOf(':')));
+            return res;
+        }
+        String res = cache.get(uriStr);
+        if (res == null) {
+            res = formatURI(uriStr, format);
+            if (cache.size() >= URI_CACHE_SIZE)
+                cache.clear();
+            cache.put(uriStr, res);
+        }
+        return res;
+    }
+
+    protected final WriteStats.Mark beginPhase() {
+        return (stats == null) ? null : stats.begin();
+    }
+
+    protected final void endPhase(WriteStats.Phase phase, Node graphName, WriteStats.Mark mark) {
+        if (mark != null)
+            stats.end(phase, graphName, mark);
+    }
+
+    // the comparator, counting its comparisons if the write is measured
+    protected final <T> Comparator<T> counted(Comparator<T> comp) {
+        if (stats == null)
+            return comp;
+        return (o1, o2) -> {
+            stats.comparisons.increment();
+            return comp.compare(o1, o2);
+        };
+    }
+
+    // with writeBase false, the URIs are still written relative to the base
     protected void writeBase(final String base) {
-        RiotLib.writeBase(out, base, DirectiveStyle.KEYWORD);
+        if (config.writeBase)
+            RiotLib.writeBase(out, base, DirectiveStyle.KEYWORD);
     }
 
     // returns the number of prefixes written
@@ -145,26 +264,23 @@ public class TurtleShell {
             map = ((CheckedPrefixMap) prefixMap).getUsedMappingCopy();
         else
             map = prefixMap.getMappingCopy();
-        final List<String> sortedKeys = new ArrayList<String>(map.keySet());
-        Collections.sort(sortedKeys);
-        for (String prefix : sortedKeys) {
-            out.print("@prefix ");
-            out.print(prefix);
-            out.print(": ");
-            out.pad(PREFIX_IRI);
-            out.print("<");
-            out.print(map.get(prefix));
-            out.print(">");
-            out.print(" .");
-            out.println();
-        }
-        return sortedKeys.size();
+        out.print(config.prefixHeader(map));
+        return map.size();
     }
 
-    /* Write graph in Turtle syntax (or part of TriG) */
-    protected void writeGraphTTL(Graph graph) {
+    /* Write graph in Turtle syntax (or part of TriG), return true if anything written */
+    protected boolean writeGraphTTL(Graph graph) {
         ShellGraph x = new ShellGraph(graph, null, null);
-        x.writeGraph();
+        return x.writeGraph();
+    }
+
+    /*
+     * Blank nodes written with their label even where they could be written
+     * as [], because the document has other triples of them outside the graph
+     * being written (see STTLStreamWriter).
+     */
+    protected boolean labeledBNode(Node node) {
+        return false;
     }
 
     /*
@@ -172,33 +288,122 @@ public class TurtleShell {
      * graph.
      */
     protected void writeGraphTTL(DatasetGraph dsg, Node graphName) {
+        ShellGraph x = scannedGraphs.remove(scanKey(graphName));
+        if (x == null) {
+            Graph g = (graphName == null || Quad.isDefaultGraph(graphName)) ? dsg.getDefaultGraph() : dsg.getGraph(graphName);
+            x = new ShellGraph(g, graphName, dsg);
+        }
+        x.writeGraph();
+    }
+
+    private static Node scanKey(Node graphName) {
+        return (graphName == null) ? Quad.defaultGraphIRI : graphName;
+    }
+
+    /**
+     * A graph rendered in its own buffer.
+     */
+    protected static final class RenderedGraph {
+        final String text;
+        // blank node labels depend on the order of output, see writeBySubjectParallel
+        final boolean labelsWritten;
+
+        RenderedGraph(final String text, final boolean labelsWritten) {
+            this.text = text;
+            this.labelsWritten = labelsWritten;
+        }
+    }
+
+    /*
+     * Render a graph of a dataset in a buffer, at the given indentation. Can be
+     * called from several threads once datasetIndex(dsg) has been built.
+     */
+    protected RenderedGraph renderGraphTTL(DatasetGraph dsg, Node graphName, int indent) {
+        IndentedLineBuffer buffer = new IndentedLineBuffer();
+        buffer.setAbsoluteIndent(indent);
+        ShellGraph scanned = scannedGraphs.get(scanKey(graphName));
+        ShellGraph x;
+        if (scanned != null) {
+            x = new ShellGraph(scanned, buffer);
+        } else {
+            Graph g = (graphName == null || Quad.isDefaultGraph(graphName)) ? dsg.getDefaultGraph() : dsg.getGraph(graphName);
+            x = new ShellGraph(g, graphName, dsg, buffer, newNodeFormatter());
+        }
+        x.writeGraph();
+        // kept for writeGraphTTL if the graph is written again
+        if (scanned != null && !x.labelsWritten)
+            scannedGraphs.remove(scanKey(graphName));
+        return new RenderedGraph(buffer.asString(), x.labelsWritten);
+    }
+
+    /* Print text rendered at the current indentation */
+    protected void printRendered(String text) {
+        final int indent = out.getAbsoluteIndent();
+        out.setAbsoluteIndent(0);
+        out.print(text);
+        out.setAbsoluteIndent(indent);
+    }
+
+    protected DatasetBNodeIndex datasetIndex(DatasetGraph dsg) {
+        if (dsgIndex == null) {
+            WriteStats.Mark mark = beginPhase();
+            dsgIndex = new DatasetBNodeIndex(dsg);
+            endPhase(WriteStats.Phase.BNODE_INDEX, null, mark);
+        }
+        return dsgIndex;
+    }
+
+    protected void setCanonicalBNodes(CanonicalBNodes canonicalBNodes) {
+        this.canonicalBNodes = canonicalBNodes;
+        this.compLiterals.compBlanks = canonicalBNodes;
+    }
+
+    /*
+     * Format the nodes that writing the graph would format, without output, so
+     * that a CheckedPrefixMap knows the used prefixes before anything is written.
+     */
+    protected void scanGraphTTL(DatasetGraph dsg, Node graphName) {
         Graph g = (graphName == null || Quad.isDefaultGraph(graphName)) ? dsg.getDefaultGraph() : dsg.getGraph(graphName);
         ShellGraph x = new ShellGraph(g, graphName, dsg);
-        x.writeGraph();
+        x.scanNodes();
+        scannedGraphs.put(scanKey(graphName), x);
+    }
+
+    protected void scanNode(Node node) {
+        if (node.isBlank())
+            return;
+        if (scanFmt == null) {
+            scanFmt = newNodeFormatter();
+            scanSink = new Utf8IndentedWriter(OutputStream.nullOutputStream(), 0);
+        }
+        scanFmt.format(scanSink, node);
     }
 
     // write comes from TurtleWriter.java
     public void write(Graph graph) {
+        if (canonical_bnodes) {
+            WriteStats.Mark mark = beginPhase();
+            setCanonicalBNodes(CanonicalBNodes.of(graph));
+            endPhase(WriteStats.Phase.CANONICAL_BNODES, null, mark);
+        }
         writeBase(baseURI);
+        ShellGraph x = new ShellGraph(graph, null, null);
         if (this.onlyWriteUsedPrefixes) {
-            final IndentedWriter savedOut = this.out;
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final IndentedWriter buffedOut = new IndentedWriter(baos);
-            // buffedOut is always at indentation 0 at this point
-            this.out = buffedOut;
-            writeGraphTTL(graph);
-            this.out = savedOut;
-            int nbPrefixesWritten = writePrefixes(this.prefixMap);
-            if (nbPrefixesWritten > 0 && !graph.isEmpty())
-                out.println();
-            buffedOut.flush();
-            this.out.print(baos.toString());
-        } else {
-            int nbPrefixesWritten = writePrefixes(this.prefixMap);
-            if (nbPrefixesWritten > 0 && !graph.isEmpty())
-                out.println();
-            writeGraphTTL(graph);
+            WriteStats.Mark mark = beginPhase();
+            x.scanNodes();
+            endPhase(WriteStats.Phase.PREFIX_SCAN, null, mark);
         }
+        int nbPrefixesWritten = writePrefixes(this.prefixMap);
+        if (nbPrefixesWritten > 0 && !graph.isEmpty())
+            out.println();
+        x.writeGraph();
+        if (stats != null)
+            stats.writeEnded();
+    }
+
+    private static final class GroupBuffers {
+        Triple[] triples = new Triple[16];
+        Node[] objects = new Node[16];
     }
 
     // Write one graph - using an inner object class to isolate
@@ -206,11 +411,14 @@ public class TurtleShell {
     private final class ShellGraph {
         // Dataset (for writing graphs indatasets) -- may be null
         private final DatasetGraph dsg;
-        private final Collection<Node> graphNames;
+        private final DatasetBNodeIndex dsgIndex;
         private final Node graphName;
         private final Graph graph;
         private CompareComplex compComplex;
 
+        // Blank node -> 0, 1 or more incoming triples (in the dataset if any)
+        private final BNodeInDegrees inDegrees;
+
         // Blank nodes that have one incoming triple
         private /* final */ Set<Node> nestedObjects;
         private final Set<Node> nestedObjectsWritten;
@@ -236,13 +444,43 @@ public class TurtleShell {
         // false when we are clearing up unwritten triples.
         private boolean allowDeepPretty = true;
 
+        // Output of this graph, a buffer in the tasks of parallel rendering
+        private final IndentedWriter out;
+        private final NodeFormatter nodeFmt;
+
+        // Whether a blank node label has been written, see writeBySubjectParallel
+        private boolean labelsWritten = false;
+
+        // Buffers reused to group the triples of the clusters by predicate,
+        // one per level of nested objects being written
+        private final List<GroupBuffers> groupBuffers = new ArrayList<>();
+        private int nesting = 0;
+        private final Comparator<Triple> byPredicate = counted((t1, t2) -> compPredicates.compare(t1.getPredicate(), t2.getPredicate()));
+        private final Comparator<Node> compObjects = counted(compLiterals);
+        // time of the complex sorts of the graph, shared with the forks
+        private final LongAdder complexSortNanos;
+
         private ShellGraph(Graph graph, Node graphName, DatasetGraph dsg) {
+            this(graph, graphName, dsg, TurtleShell.this.out, TurtleShell.this.nodeFmt);
+        }
+
+        private ShellGraph(Graph graph, Node graphName, DatasetGraph dsg, IndentedWriter out, NodeFormatter nodeFmt) {
+            this.out = out;
+            this.nodeFmt = nodeFmt;
+            this.complexSortNanos = new LongAdder();
             this.dsg = dsg;
             this.graphName = graphName;
 
-            this.graphNames = (dsg != null) ? Iter.toSet(dsg.listGraphNodes()) : null;
+            this.dsgIndex = (dsg != null) ? datasetIndex(dsg) : null;
 
             this.graph = graph;
+            if (dsg != null) {
+                this.inDegrees = dsgIndex.inDegrees;
+            } else {
+                WriteStats.Mark mark = beginPhase();
+                this.inDegrees = BNodeInDegrees.of(graph);
+                endPhase(WriteStats.Phase.BNODE_INDEX, graphName, mark);
+            }
             this.nestedObjects = new HashSet<>();
             this.nestedObjectsWritten = new HashSet<>();
             this.freeBnodes = new HashSet<>();
@@ -254,16 +492,43 @@ public class TurtleShell {
             this.allowDeepPretty = true;
 
             // Must be in this order.
+            WriteStats.Mark mark = beginPhase();
             findLists();
+            endPhase(WriteStats.Phase.LISTS, graphName, mark);
+            mark = beginPhase();
             findBNodesSyntax1();
             // Stop head of lists printed as triples going all the way to the
             // good part.
             nestedObjects.removeAll(listElts);
+            endPhase(WriteStats.Phase.NESTED_BNODES, graphName, mark);
 
             if (complexPredicatesPriorities != null)
                 this.compComplex = new CompareComplex(compLiterals, complexPredicatesPriorities, graph);
             else
-                this.compComplex = new CompareComplex(graph);
+                this.compComplex = new CompareComplex(compLiterals, CompareComplex.getDefaultPropUris(), graph);
+            this.compComplex.compTies = canonicalBNodes;
+            if (stats != null)
+                this.compComplex.comparisons = stats.comparisons;
+        }
+
+        // Renders in another buffer, sharing the analysis of the graph
+        private ShellGraph(ShellGraph parent, IndentedWriter out) {
+            this.out = out;
+            this.nodeFmt = newNodeFormatter();
+            this.dsg = parent.dsg;
+            this.dsgIndex = parent.dsgIndex;
+            this.graphName = parent.graphName;
+            this.graph = parent.graph;
+            this.compComplex = parent.compComplex;
+            this.complexSortNanos = parent.complexSortNanos;
+            this.inDegrees = parent.inDegrees;
+            this.nestedObjects = parent.nestedObjects;
+            this.nestedObjectsWritten = new HashSet<>();
+            this.freeBnodes = parent.freeBnodes;
+            this.lists = parent.lists;
+            this.freeLists = parent.freeLists;
+            this.nLinkedLists = parent.nLinkedLists;
+            this.listElts = parent.listElts;
         }
 
         // Debug
@@ -301,26 +566,10 @@ public class TurtleShell {
 
         /** returns 0,1,2 (where 2 really means "more than 1") */
         private int inLinks(Node obj) {
-            if (dsg != null) {
-                Iterator<Quad> iter = dsg.find(Node.ANY, Node.ANY, Node.ANY, obj);
-                return count012(iter);
-            } else {
-                ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, obj);
-                try {
-                    return count012(iter);
-                } finally {
-                    iter.close();
-                }
-            }
-        }
-
-        private int count012(Iterator<?> iter) {
-            if (!iter.hasNext())
-                return 0;
-            iter.next();
-            if (!iter.hasNext())
-                return 1;
-            return 2;
+            if (obj.isBlank())
+                return inDegrees.get(obj);
+            long n = countTriples(null, null, obj);
+            return (n > 2) ? 2 : (int) n;
         }
 
         /** Check whether a node is used only in the graph we're working on */
@@ -328,55 +577,7 @@ public class TurtleShell {
             if (dsg == null)
                 // Single graph
                 return true;
-
-            if (graphNames.contains(node))
-                // Used as a graph name.
-                return false;
-
-            Iterator<Quad> iter = dsg.find(Node.ANY, node, Node.ANY, Node.ANY);
-            if (!quadsThisGraph(iter))
-                return false;
-
-            iter = dsg.find(Node.ANY, Node.ANY, node, Node.ANY);
-            if (!quadsThisGraph(iter))
-                return false;
-
-            iter = dsg.find(Node.ANY, Node.ANY, Node.ANY, node);
-            if (!quadsThisGraph(iter))
-                return false;
-            return true;
-        }
-
-        /**
-         * Check whether an iterator of quads is all in the same graph (dataset assumed)
-         */
-        private boolean quadsThisGraph(Iterator<Quad> iter) {
-            if (!iter.hasNext())
-                // Empty iterator
-                return true;
-            Quad q = iter.next();
-            Node gn = q.getGraph();
-
-            // Test first quad - both default graph (various forms) or same named graph
-            if (isDefaultGraph(gn)) {
-                if (!isDefaultGraph(graphName))
-                    return false;
-            } else {
-                if (!Objects.equals(gn, graphName))
-                    // Not both same named graph
-                    return false;
-            }
-            // Check rest of iterator.
-            for (; iter.hasNext();) {
-                Quad q2 = iter.next();
-                if (!Objects.equals(gn, q2.getGraph()))
-                    return false;
-            }
-            return true;
-        }
-
-        private boolean isDefaultGraph(Node node) {
-            return node == null || Quad.isDefaultGraph(node);
+            return dsgIndex.containedInOneGraph(node, graphName);
         }
 
         /** Get triples with the same subject */
@@ -384,11 +585,31 @@ public class TurtleShell {
             return RiotLib.triplesOfSubject(graph, subj);
         }
 
+        private void addSubjects(final Consumer<Node> acc, final boolean distinct) {
+            // one pass, keeping only the distinct subjects if asked
+            final Set<Node> subjects = distinct ? new HashSet<>() : null;
+            Node last = null;
+            ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+            try {
+                while (iter.hasNext()) {
+                    Node subj = iter.next().getSubject();
+                    // triples often come grouped by subject
+                    if (subj.equals(last))
+                        continue;
+                    last = subj;
+                    if (subjects == null || subjects.add(subj))
+                        acc.accept(subj);
+                }
+            } finally {
+                iter.close();
+            }
+        }
+
         private List<Node> listSubjects() {
             // reimplement in a sorted way:
-            ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
-            List<Node> ln = Iter.iter(iter).map(Triple::getSubject).distinct().toList();
-            Collections.sort(ln, compLiterals);
+            final List<Node> ln = new ArrayList<>();
+            addSubjects(ln::add, true);
+            Collections.sort(ln, compObjects);
             return ln;
         }
 
@@ -401,6 +622,8 @@ public class TurtleShell {
          */
         private void findBNodesSyntax1() {
             Set<Node> rejects = new HashSet<>(); // Nodes known not to meet the requirement.
+            // ranked before the clusters are sorted, see ComparePredicates
+            Set<Node> predicates = new HashSet<>();
 
             ExtendedIterator<Triple> iter = find(Node.ANY, Node.ANY, Node.ANY);
             try {
@@ -408,8 +631,9 @@ public class TurtleShell {
                     Triple t = iter.next();
                     Node subj = t.getSubject();
                     Node obj = t.getObject();
+                    predicates.add(t.getPredicate());
 
-                    if (subj.isBlank()) {
+                    if (subj.isBlank() && !labeledBNode(subj)) {
                         int sConn = inLinks(subj);
                         if (sConn == 0 && containedInOneGraph(subj))
                             // Not used as an object in this graph.
@@ -418,7 +642,7 @@ public class TurtleShell {
 
                     if (!obj.isBlank())
                         continue;
-                    if (rejects.contains(obj))
+                    if (rejects.contains(obj) || labeledBNode(obj))
                         continue;
 
                     int connectivity = inLinks(obj);
@@ -432,6 +656,7 @@ public class TurtleShell {
             } finally {
                 iter.close();
             }
+            compPredicates.rank(predicates);
         }
 
         // --- Lists setup
@@ -449,7 +674,7 @@ public class TurtleShell {
                     Node headElt = p.getLeft();
                     // Free standing/private
                     List<Node> elts = p.getRight();
-                    long numLinks = countTriples(null, null, headElt);
+                    int numLinks = inLinks(headElt);
                     if (numLinks == 1)
                         lists.put(headElt, elts);
                     else if (numLinks == 0)
@@ -512,6 +737,8 @@ public class TurtleShell {
 
         /** Return the triples of the list element, or null if invalid list */
         private boolean validListElement(Node x, List<Triple> acc) {
+            if (labeledBNode(x))
+                return false;
             Triple t1 = triple1(x, RDF_Rest, null); // Which we came up to get
                                                     // here :-(
             if (t1 == null)
@@ -529,9 +756,66 @@ public class TurtleShell {
 
         // ----
 
-        private void writeGraph() {
-            List<Node> subjects = listSubjects();
-            boolean somethingWritten = writeBySubject(subjects);
+        // Formats the nodes that writeGraph formats (the nodes written in list
+        // or [] syntax are not formatted), without output.
+        private void scanNodes() {
+            ExtendedIterator<Triple> iter = find(Node.ANY, Node.ANY, Node.ANY);
+            try {
+                while (iter.hasNext()) {
+                    Triple t = iter.next();
+                    Node s = t.getSubject();
+                    Node p = t.getPredicate();
+                    Node o = t.getObject();
+                    scanNode(s);
+                    // list cells are written as ( ... ), except the first cell of the
+                    // lists written in the remainders
+                    boolean inList = (p.equals(RDF_First) || p.equals(RDF_Rest)) && listElts.contains(s)
+                            && !freeLists.containsKey(s) && !nLinkedLists.containsKey(s);
+                    // same test as writePredicate
+                    boolean a = !prefixMap.containsPrefix(rdfNS) && RDF_type.equals(p);
+                    if (!inList && !a)
+                        scanNode(p);
+                    // rdf:nil objects are written ()
+                    if (!o.isBlank() && !RDF_Nil.equals(o))
+                        scanNode(o);
+                }
+            } finally {
+                iter.close();
+            }
+        }
+
+        private boolean writeGraph() {
+            if (stats != null) {
+                stats.lists.add(lists.size());
+                stats.nestedBNodes.add(nestedObjects.size());
+            }
+            WriterMetrics metrics = WriterMetrics.get();
+            if (metrics != null)
+                metrics.analysisSizes(nestedObjects.size(), lists.size(), freeBnodes.size());
+            boolean somethingWritten;
+            WriteStats.Mark mark = beginPhase();
+            if (sort_memory_budget > 0) {
+                // subjects sorted on disk, see ExternalNodeSort
+                try (ExternalNodeSort subjects = new ExternalNodeSort(compObjects, sort_memory_budget)) {
+                    addSubjects(subjects::add, false);
+                    Iterator<Node> sorted = subjects.sorted();
+                    endPhase(WriteStats.Phase.SUBJECT_SORT, graphName, mark);
+                    mark = beginPhase();
+                    somethingWritten = writeRemainders(writeBySubject(sorted));
+                }
+            } else {
+                List<Node> sorted = listSubjects();
+                endPhase(WriteStats.Phase.SUBJECT_SORT, graphName, mark);
+                mark = beginPhase();
+                somethingWritten = writeRemainders(writeBySubject(sorted.iterator()));
+            }
+            endPhase(WriteStats.Phase.RENDERING, graphName, mark);
+            if (stats != null)
+                stats.total(WriteStats.Phase.COMPLEX_SORT, graphName, complexSortNanos.sum());
+            return somethingWritten;
+        }
+
+        private boolean writeRemainders(boolean somethingWritten) {
             // Write remainders
             // 1 - Shared lists
             somethingWritten = writeRemainingNLinkedLists(somethingWritten);
@@ -545,13 +829,14 @@ public class TurtleShell {
             // printDetails("nestedObjectsWritten", nestedObjectsWritten) ;
             Set<Node> singleNodes = SetUtils.difference(nestedObjects, nestedObjectsWritten);
             somethingWritten = writeRemainingNestedObjects(singleNodes, somethingWritten);
+            return somethingWritten;
         }
 
         private boolean writeRemainingNLinkedLists(boolean somethingWritten) {
             // Print carefully - need a label for the first cell.
             // So we write out the first element of the list in triples, then
             // put the remainer as a pretty list
-            for (Node n : nLinkedLists.keySet()) {
+            for (Node n : inOrder(nLinkedLists.keySet())) {
                 if (somethingWritten)
                     out.println();
                 somethingWritten = true;
@@ -582,7 +867,7 @@ public class TurtleShell {
         // some other triple. Turtle does not allow free standing (... ) .
         // so write as a predicateObjectList for one element.
         private boolean writeRemainingFreeLists(boolean somethingWritten) {
-            for (Node n : freeLists.keySet()) {
+            for (Node n : inOrder(freeLists.keySet())) {
                 if (somethingWritten)
                     out.println();
                 somethingWritten = true;
@@ -610,7 +895,7 @@ public class TurtleShell {
         // Also from from blank node cycles + tail: _:a <p> _:b . _:a <p> "" . _b: <p>
         // _:a .
         private boolean writeRemainingNestedObjects(Set<Node> objects, boolean somethingWritten) {
-            for (Node n : objects) {
+            for (Node n : inOrder(objects)) {
                 if (somethingWritten)
                     out.println();
                 somethingWritten = true;
@@ -633,10 +918,22 @@ public class TurtleShell {
             return somethingWritten;
         }
 
+        // Remainders are written in canonical order when there is one
+        private Collection<Node> inOrder(Collection<Node> nodes) {
+            if (canonicalBNodes == null)
+                return nodes;
+            List<Node> res = new ArrayList<>(nodes);
+            Collections.sort(res, compLiterals);
+            return res;
+        }
+
         // return true if did write something.
-        private boolean writeBySubject(List<Node> subjects) {
+        private boolean writeBySubject(Iterator<Node> subjects) {
+            if (parallel_rendering)
+                return writeBySubjectParallel(subjects);
             boolean first = true;
-            for (Node subj : subjects) {
+            while (subjects.hasNext()) {
+                Node subj = subjects.next();
                 if (nestedObjects.contains(subj))
                     continue;
                 if (listElts.contains(subj))
@@ -644,18 +941,230 @@ public class TurtleShell {
                 if (!first)
                     out.println();
                 first = false;
-                if (freeBnodes.contains(subj)) {
-                    // Top level: write in "[....]" on "[] :p" form.
-                    writeNestedObjectTopLevel(subj);
-                    continue;
+                if (stats != null)
+                    stats.subjects.increment();
+                writeSubject(subj);
+            }
+            return !first;
+        }
+
+        private void writeSubject(Node subj) {
+            if (fragmentConfig != null && canonicalBNodes == null)
+                writeSubjectCached(subj);
+            else
+                writeSubjectRendered(subj);
+        }
+
+        private void writeSubjectRendered(Node subj) {
+            if (freeBnodes.contains(subj)) {
+                // Top level: write in "[....]" on "[] :p" form.
+                writeNestedObjectTopLevel(subj);
+                return;
+            }
+            Collection<Triple> cluster = triplesOfSubject(subj);
+            writeCluster(subj, cluster);
+        }
+
+        // Same output as writeSubjectRendered, copied from the fragment cache
+        // if it's there
+        private void writeSubjectCached(Node subj) {
+            final List<Node> nested = new ArrayList<>();
+            final FragmentCache.Key key = fragmentKey(subj, nested);
+            if (key == null) {
+                writeSubjectRendered(subj);
+                return;
+            }
+            final int indent = out.getAbsoluteIndent();
+            byte[] text = fragmentCache.get(key);
+            if (text == null) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final Utf8IndentedWriter buffer = new Utf8IndentedWriter(bytes, 0);
+                buffer.setAbsoluteIndent(indent);
+                final ShellGraph fork = new ShellGraph(ShellGraph.this, buffer);
+                fork.writeSubjectRendered(subj);
+                if (fork.labelsWritten) {
+                    writeSubjectRendered(subj);
+                    return;
                 }
+                buffer.flush();
+                text = bytes.toByteArray();
+                fragmentCache.put(key, text);
+            }
+            nestedObjectsWritten.addAll(nested);
+            out.setAbsoluteIndent(0);
+            if (out instanceof Utf8IndentedWriter)
+                ((Utf8IndentedWriter) out).printUtf8(text);
+            else
+                out.print(new String(text, StandardCharsets.UTF_8));
+            out.setAbsoluteIndent(indent);
+        }
 
-                Collection<Triple> cluster = triplesOfSubject(subj);
-                writeCluster(subj, cluster);
+        // The key of what writeSubjectRendered writes: the triples of the
+        // subject, of the nested blank nodes (added to nested) and the lists
+        // they lead to. Null if a blank node label would be written.
+        private FragmentCache.Key fragmentKey(Node subj, List<Node> nested) {
+            final FragmentCache.Key key = new FragmentCache.Key();
+            key.putString(fragmentConfig).putInt(out.getAbsoluteIndent());
+            if (freeBnodes.contains(subj))
+                key.put('[').put(']');
+            else if (subj.isBlank())
+                return null;
+            else
+                fragmentNode(key, subj);
+            return fragmentContent(key, subj, nested) ? key : null;
+        }
+
+        // the lines of the triples, sorted
+        private boolean fragmentContent(FragmentCache.Key key, Node subj, List<Node> nested) {
+            final Collection<Triple> cluster = triplesOfSubject(subj);
+            final int[] bounds = new int[cluster.size() + 1];
+            int i = 0;
+            for (Triple t : cluster) {
+                bounds[i++] = key.size();
+                fragmentNode(key, t.getPredicate());
+                if (!fragmentObject(key, t.getObject(), nested))
+                    return false;
+            }
+            bounds[i] = key.size();
+            key.sort(bounds);
+            return true;
+        }
+
+        // as written by writeNodePretty, or writeNode
+        private boolean fragmentObject(FragmentCache.Key key, Node o, List<Node> nested) {
+            if (lists.containsKey(o)) {
+                key.put('(');
+                for (Node elt : lists.get(o)) {
+                    if (!fragmentObject(key, elt, nested))
+                        return false;
+                }
+                key.put(')');
+                return true;
+            }
+            if (nestedObjects.contains(o)) {
+                nested.add(o);
+                key.put('[');
+                if (!fragmentContent(key, o, nested))
+                    return false;
+                key.put(']');
+                return true;
+            }
+            if (o.isBlank())
+                return false;
+            fragmentNode(key, o);
+            return true;
+        }
+
+        // Unambiguous form of a node in the keys, the lengths of the strings
+        // standing for the escaping
+        private void fragmentNode(FragmentCache.Key key, Node n) {
+            if (n.isURI()) {
+                key.put('<').putString(n.getURI());
+            } else if (n.isLiteral()) {
+                final TextDirection direction = n.getLiteralTextDirection();
+                key.put('"').putString(n.getLiteralLexicalForm()).putString(n.getLiteralLanguage())
+                        .putString(n.getLiteralDatatypeURI()).putString((direction == null) ? "" : direction.toString());
+            } else {
+                key.put('?').putString(NodeFmtLib.strNT(n));
+            }
+        }
+
+        // Same output as the sequential loop: chunks of consecutive subjects
+        // are rendered in their own buffers by tasks of the common ForkJoinPool,
+        // then copied in order. Blank node labels are given in the order of the
+        // output, so chunks writing labels are written again sequentially.
+        private boolean writeBySubjectParallel(Iterator<Node> subjects) {
+            boolean first = true;
+            final List<Node> batch = new ArrayList<>();
+            while (subjects.hasNext()) {
+                batch.clear();
+                while (subjects.hasNext() && batch.size() < PARALLEL_BATCH) {
+                    Node subj = subjects.next();
+                    if (!nestedObjects.contains(subj) && !listElts.contains(subj))
+                        batch.add(subj);
+                }
+                if (batch.isEmpty())
+                    continue;
+                if (stats != null)
+                    stats.subjects.add(batch.size());
+                final int indent = out.getAbsoluteIndent();
+                final List<RenderedChunk> chunks = ForkJoinPool.commonPool().invoke(new RenderTask(batch, 0, batch.size(), indent));
+                for (RenderedChunk chunk : chunks) {
+                    if (!first)
+                        out.println();
+                    first = false;
+                    if (chunk.labelsWritten) {
+                        for (int i = chunk.from; i < chunk.to; i++) {
+                            if (i > chunk.from)
+                                out.println();
+                            writeSubject(batch.get(i));
+                        }
+                        continue;
+                    }
+                    nestedObjectsWritten.addAll(chunk.nestedObjectsWritten);
+                    out.setAbsoluteIndent(0);
+                    out.print(chunk.text);
+                    out.setAbsoluteIndent(indent);
+                }
             }
             return !first;
         }
 
+        private final class RenderedChunk {
+            final int from;
+            final int to;
+            final String text;
+            final Set<Node> nestedObjectsWritten;
+            final boolean labelsWritten;
+
+            RenderedChunk(int from, int to, ShellGraph fork) {
+                this.from = from;
+                this.to = to;
+                this.text = ((IndentedLineBuffer) fork.out).asString();
+                this.nestedObjectsWritten = fork.nestedObjectsWritten;
+                this.labelsWritten = fork.labelsWritten;
+            }
+        }
+
+        private final class RenderTask extends RecursiveTask<List<RenderedChunk>> {
+            private static final long serialVersionUID = 1L;
+            private final List<Node> subjects;
+            private final int from;
+            private final int to;
+            private final int indent;
+
+            RenderTask(List<Node> subjects, int from, int to, int indent) {
+                this.subjects = subjects;
+                this.from = from;
+                this.to = to;
+                this.indent = indent;
+            }
+
+            @Override
+            protected List<RenderedChunk> compute() {
+                if (to - from <= config.parallelChunkSize) {
+                    final IndentedLineBuffer buffer = new IndentedLineBuffer();
+                    buffer.setAbsoluteIndent(indent);
+                    final ShellGraph fork = new ShellGraph(ShellGraph.this, buffer);
+                    for (int i = from; i < to; i++) {
+                        if (i > from)
+                            buffer.println();
+                        fork.writeSubject(subjects.get(i));
+                    }
+                    final List<RenderedChunk> res = new ArrayList<>(1);
+                    res.add(new RenderedChunk(from, to, fork));
+                    return res;
+                }
+                final int middle = (from + to) >>> 1;
+                final RenderTask left = new RenderTask(subjects, from, middle, indent);
+                left.fork();
+                final List<RenderedChunk> right = new RenderTask(subjects, middle, to, indent).compute();
+                final List<RenderedChunk> res = left.join();
+                res.addAll(right);
+                return res;
+            }
+        }
+
         // A Cluster is a collection of triples with the same subject.
         private void writeCluster(Node subject, Collection<Triple> cluster) {
             if (cluster.isEmpty())
@@ -687,8 +1196,34 @@ public class TurtleShell {
         // literals, then simple objects, then pretty objects
 
         private void writePredicateObjectList(Collection<Triple> cluster) {
-            Map<Node, List<Node>> pGroups = groupByPredicates(cluster);
-            Collection<Node> predicates = pGroups.keySet();
+            nesting++;
+            try {
+                writePredicateObjectList(cluster, groupBuffers(nesting - 1, cluster.size()));
+            } finally {
+                nesting--;
+            }
+        }
+
+        // The buffers of this level of nesting, big enough for the cluster
+        private GroupBuffers groupBuffers(int level, int size) {
+            if (level == groupBuffers.size())
+                groupBuffers.add(new GroupBuffers());
+            GroupBuffers res = groupBuffers.get(level);
+            if (res.triples.length < size) {
+                int length = Math.max(size, 2 * res.triples.length);
+                res.triples = new Triple[length];
+                res.objects = new Node[length];
+            }
+            return res;
+        }
+
+        private void writePredicateObjectList(Collection<Triple> cluster, GroupBuffers buffers) {
+            // The triples sorted by predicate, each group in the order of the
+            // cluster
+            int n = cluster.size();
+            Triple[] triples = cluster.toArray(buffers.triples);
+            Arrays.sort(triples, 0, n, byPredicate);
+            Node[] objects = buffers.objects;
 
             // Find longest predicate URI
             // int predicateMaxWidth = RiotLib.calcWidth(prefixMap, baseURI, predicates,
@@ -700,38 +1235,50 @@ public class TurtleShell {
 
             boolean first = true;
 
-            if (!OBJECT_LISTS) {
-                for (Node p : predicates) {
-                    for (Node o : pGroups.get(p)) {
-                        writePredicateObject(p, o, predicateMaxWidth, first);
+            for (int start = 0, end; start < n; start = end) {
+                Node p = triples[start].getPredicate();
+                end = start + 1;
+                while (end < n && triples[end].getPredicate().equals(p))
+                    end++;
+
+                if (!OBJECT_LISTS) {
+                    for (int i = start; i < end; i++) {
+                        writePredicateObject(p, triples[i].getObject(), predicateMaxWidth, first);
                         first = false;
                     }
+                    continue;
                 }
-                return;
-            }
-
-            for (Node p : predicates) {
-                List<Node> rdfSimpleNodes = new ArrayList<>();
-                // Non-literals, printed (), or []-embedded
-                List<Node> rdfComplexNodes = new ArrayList<>();
 
-                for (Node o : pGroups.get(p)) {
-                    if (isPrettyNode(o)) {
-                        rdfComplexNodes.add(o);
-                        continue;
-                    }
-                    rdfSimpleNodes.add(o);
+                // Literals and simple objects first, then the non-literals,
+                // printed (), or []-embedded, both in the order of the cluster
+                int endSimple = start;
+                int startComplex = end;
+                for (int i = start; i < end; i++) {
+                    Node o = triples[i].getObject();
+                    if (isPrettyNode(o))
+                        objects[--startComplex] = o;
+                    else
+                        objects[endSimple++] = o;
+                }
+                for (int i = startComplex, j = end - 1; i < j; i++, j--) {
+                    Node o = objects[i];
+                    objects[i] = objects[j];
+                    objects[j] = o;
                 }
 
-                if (!rdfSimpleNodes.isEmpty()) {
-                    Collections.sort(rdfSimpleNodes, compLiterals);
-                    writePredicateObjectList(p, rdfSimpleNodes, predicateMaxWidth, first, false);
+                if (endSimple > start) {
+                    Arrays.sort(objects, start, endSimple, compObjects);
+                    writePredicateObjectList(p, objects, start, endSimple, predicateMaxWidth, first, false);
                     first = false;
                 }
 
-                if (!rdfComplexNodes.isEmpty()) {
-                    Collections.sort(rdfComplexNodes, compComplex);
-                    writePredicateObjectList(p, rdfComplexNodes, predicateMaxWidth, first, true);
+                if (startComplex < end) {
+                    // run for each predicate: only timed, see WriteStats
+                    final long sortStart = (stats == null) ? 0 : System.nanoTime();
+                    compComplex.sort(Arrays.asList(objects).subList(startComplex, end));
+                    if (stats != null)
+                        complexSortNanos.add(System.nanoTime() - sortStart);
+                    writePredicateObjectList(p, objects, startComplex, end, predicateMaxWidth, first, true);
                     first = false;
                 }
             }
@@ -744,13 +1291,14 @@ public class TurtleShell {
             out.decIndent(indent_base);
         }
 
-        private void writePredicateObjectList(Node p, List<Node> objects, int predicateMaxWidth, boolean first, boolean complex) {
-            boolean useMultiLine = objects_multi_line && objects.size() > 1;
+        private void writePredicateObjectList(Node p, Node[] objects, int from, int to, int predicateMaxWidth, boolean first, boolean complex) {
+            boolean useMultiLine = objects_multi_line && to - from > 1;
             writePredicate(p, predicateMaxWidth, first, useMultiLine);
             out.incIndent(indent_base);
 
             boolean firstObject = true;
-            for (Node o : objects) {
+            for (int i = from; i < to; i++) {
+                Node o = objects[i];
                 if (firstObject && useMultiLine)
                     out.pad(indent_base);
                 if (!firstObject) {
@@ -801,25 +1349,15 @@ public class TurtleShell {
             }
         }
 
-        private Map<Node, List<Node>> groupByPredicates(Collection<Triple> cluster) {
-            SortedMap<Node, List<Node>> x = new TreeMap<>(compPredicates);
+        private boolean hasOnePredicate(Collection<Triple> cluster) {
+            Node p = null;
             for (Triple t : cluster) {
-                Node p = t.getPredicate();
-                if (!x.containsKey(p))
-                    x.put(p, new ArrayList<Node>());
-                x.get(p).add(t.getObject());
-            }
-
-            return x;
-        }
-
-        private int countPredicates(Collection<Triple> cluster) {
-            Set<Node> x = new HashSet<>();
-            for (Triple t : cluster) {
-                Node p = t.getPredicate();
-                x.add(p);
+                if (p == null)
+                    p = t.getPredicate();
+                else if (!p.equals(t.getPredicate()))
+                    return false;
             }
-            return x.size();
+            return true;
         }
 
         // [ :p "abc" ] . or [] : "abc" .
@@ -836,9 +1374,7 @@ public class TurtleShell {
                 return;
             }
 
-            int pCount = countPredicates(x);
-
-            if (pCount == 1) {
+            if (hasOnePredicate(x)) {
                 print("[ ");
                 out.incIndent(2);
                 writePredicateObjectList(x);
@@ -958,24 +1494,39 @@ public class TurtleShell {
             else
                 gap(GAP_S_P);
         }
-    }
 
-    protected final void writeNode(Node node) {
-        nodeFmt.format(out, node);
-    }
+        private void writeNode(Node node) {
+            if (canonicalBNodes == null && node.isBlank())
+                labelsWritten = true;
+            TurtleShell.this.writeNode(out, nodeFmt, node);
+        }
+
+        private void print(String x) {
+            out.print(x);
+        }
 
-    private void print(String x) {
-        out.print(x);
+        private void gap(int gap) {
+            out.print(' ', gap);
+        }
+
+        // flush aggressively (debugging)
+        private void println() {
+            out.println();
+            // out.flush() ;
+        }
     }
 
-    private void gap(int gap) {
-        out.print(' ', gap);
+    protected final void writeNode(Node node) {
+        writeNode(out, nodeFmt, node);
     }
 
-    // flush aggressively (debugging)
-    private void println() {
-        out.println();
-        // out.flush() ;
+    private void writeNode(IndentedWriter out, NodeFormatter nodeFmt, Node node) {
+        if (canonicalBNodes != null && node.isBlank()) {
+            out.print("_:");
+            out.print(canonicalBNodes.getLabel(node));
+            return;
+        }
+        nodeFmt.format(out, node);
     }
 
 }
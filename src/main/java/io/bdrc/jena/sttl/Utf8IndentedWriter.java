@@ -0,0 +1,304 @@
+package io.bdrc.jena.sttl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.atlas.io.IndentedWriter;
+
+/**
+* IndentedWriter encoding directly to UTF-8 bytes, used by the writers when
+* they write to an OutputStream.
+*
+* Jena's IndentedWriter sends each character through a BufferedWriter and an
+* OutputStreamWriter. This one copies runs of ASCII characters (most of the
+* IRIs, literals and punctuation of the output) to its byte buffer in one loop,
+* writes the padding from a constant array of spaces, and only looks at the
+* characters one by one for non-ASCII text and newlines.
+*
+* The output, the columns and the rows are the same as IndentedWriter's,
+* including the replacement of unpaired surrogates by '?'. It is only given to
+* the shells of this package, which don't use flat mode, line numbers, line
+* prefixes, end of line markers or padding other than spaces: these settings
+* are ignored.
+*/
+final class Utf8IndentedWriter extends IndentedWriter {
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int MIN_BUFFER_SIZE = 1 << 10;
+
+    // padding, copied in one go
+    private static final byte[] SPACES = new byte[256];
+    static { Arrays.fill(SPACES, (byte) ' '); }
+
+    private final OutputStream sink;
+    private final byte[] buf;
+    private int pos = 0;
+    // last character printed, for \r\n
+    private char lastChar = 0;
+    // high surrogate waiting for the next character
+    private char highSurrogate = 0;
+    private boolean flushOnNewline = false;
+
+    Utf8IndentedWriter(final OutputStream sink) {
+        this(sink, BUFFER_SIZE);
+    }
+
+    Utf8IndentedWriter(final OutputStream sink, final int bufferSize) {
+        super((Writer) null);
+        this.sink = sink;
+        this.buf = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+    }
+
+    private void drain() {
+        if (pos == 0)
+            return;
+        try {
+            sink.write(buf, 0, pos);
+        } catch (IOException e) {
+            IO.exception(e);
+        }
+        pos = 0;
+    }
+
+    // a high surrogate followed by something else than a low surrogate
+    private void unpairedSurrogate() {
+        highSurrogate = 0;
+        if (pos == buf.length)
+            drain();
+        buf[pos++] = '?';
+    }
+
+    private void writeSpaces(int n) {
+        if (highSurrogate != 0)
+            unpairedSurrogate();
+        while (n > 0) {
+            if (pos == buf.length)
+                drain();
+            final int k = Math.min(n, Math.min(SPACES.length, buf.length - pos));
+            System.arraycopy(SPACES, 0, buf, pos, k);
+            pos += k;
+            n -= k;
+        }
+    }
+
+    // encodes a character other than a newline
+    private void encode(final char c) {
+        if (pos + 4 > buf.length)
+            drain();
+        if (highSurrogate != 0) {
+            if (Character.isLowSurrogate(c)) {
+                final int cp = Character.toCodePoint(highSurrogate, c);
+                highSurrogate = 0;
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                return;
+            }
+            unpairedSurrogate();
+        }
+        if (c < 0x80) {
+            buf[pos++] = (byte) c;
+        } else if (c < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buf[pos++] = '?';
+        } else {
+            buf[pos++] = (byte) (0xE0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    // pads the start of the line (or of the new indentation) up to the indentation
+    private void lineStart() {
+        if (column < currentIndent) {
+            writeSpaces(currentIndent - column);
+            column = currentIndent;
+        }
+        startingNewLine = false;
+    }
+
+    private void printOneChar(final char c) {
+        if (c == '\n' && lastChar == '\r') {
+            lastChar = c;
+            return;
+        }
+        lineStart();
+        lastChar = c;
+        if (c == '\n' || c == '\r') {
+            newline();
+            return;
+        }
+        encode(c);
+        column++;
+    }
+
+    @Override
+    public void print(String str) {
+        if (str == null)
+            str = "null";
+        final int len = str.length();
+        int i = 0;
+        while (i < len) {
+            char c = str.charAt(i);
+            if (c >= 0x80 || c == '\n' || c == '\r' || highSurrogate != 0) {
+                printOneChar(c);
+                i++;
+                continue;
+            }
+            // run of ASCII characters, the padding is only needed before the first one
+            lineStart();
+            final int start = i;
+            while (i < len) {
+                if (pos == buf.length)
+                    drain();
+                final int end = Math.min(len, i + buf.length - pos);
+                while (i < end && (c = str.charAt(i)) < 0x80 && c != '\n' && c != '\r') {
+                    buf[pos++] = (byte) c;
+                    i++;
+                }
+                if (i < end)
+                    break;
+            }
+            column += i - start;
+            lastChar = str.charAt(i - 1);
+        }
+    }
+
+    /**
+    * Prints UTF-8 text written by a Utf8IndentedWriter (without '\r'), as
+    * print(String) would, copying the bytes when there's no indentation (the
+    * text of the fragment cache, already indented).
+    */
+    void printUtf8(final byte[] text) {
+        if (currentIndent != 0 || highSurrogate != 0) {
+            print(new String(text, StandardCharsets.UTF_8));
+            return;
+        }
+        if (text.length == 0)
+            return;
+        int rows = 0;
+        int lastNewline = -1;
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '\n') {
+                rows++;
+                lastNewline = i;
+            }
+        }
+        int col = (lastNewline < 0) ? column : 0;
+        for (int i = lastNewline + 1; i < text.length; i++) {
+            final byte b = text[i];
+            // a character, or two for a surrogate pair
+            if ((b & 0xC0) != 0x80)
+                col += ((b & 0xF8) == 0xF0) ? 2 : 1;
+        }
+        int off = 0;
+        while (off < text.length) {
+            if (pos == buf.length)
+                drain();
+            final int n = Math.min(text.length - off, buf.length - pos);
+            System.arraycopy(text, off, buf, pos, n);
+            pos += n;
+            off += n;
+        }
+        final byte last = text[text.length - 1];
+        lastChar = (last >= 0) ? (char) last : 0;
+        startingNewLine = (last == '\n');
+        column = col;
+        row += rows;
+        if (flushOnNewline && rows > 0)
+            flush();
+    }
+
+    @Override
+    public void print(final char ch) {
+        printOneChar(ch);
+    }
+
+    @Override
+    public void print(final char[] cbuf) {
+        for (final char c : cbuf)
+            printOneChar(c);
+    }
+
+    @Override
+    public void print(final char ch, final int n) {
+        lineStart();
+        for (int i = 0; i < n; i++)
+            printOneChar(ch);
+    }
+
+    @Override
+    public void newline() {
+        lineStart();
+        if (highSurrogate != 0)
+            unpairedSurrogate();
+        if (pos == buf.length)
+            drain();
+        buf[pos++] = '\n';
+        startingNewLine = true;
+        row++;
+        column = 0;
+        if (flushOnNewline)
+            flush();
+    }
+
+    @Override
+    public void pad() {
+        if (startingNewLine && currentIndent > 0)
+            lineStart();
+        if (column < currentIndent) {
+            writeSpaces(currentIndent - column);
+            column = currentIndent;
+        }
+    }
+
+    @Override
+    public void pad(int col, final boolean absoluteColumn) {
+        if (!absoluteColumn)
+            col += currentIndent;
+        final int spaces = col - column;
+        if (spaces > 0) {
+            writeSpaces(spaces);
+            column += spaces;
+        }
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        try {
+            sink.flush();
+        } catch (IOException e) {
+            IO.exception(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (highSurrogate != 0)
+            unpairedSurrogate();
+        drain();
+        IO.close(sink);
+    }
+
+    @Override
+    public boolean getFlushOnNewline() {
+        return flushOnNewline;
+    }
+
+    @Override
+    public void setFlushOnNewline(final boolean flushOnNewline) {
+        this.flushOnNewline = flushOnNewline;
+    }
+
+}
@@ -0,0 +1,18 @@
+package io.bdrc.jena.sttl;
+
+/**
+* Listener receiving the statistics of each write, set with the symbol
+* <code>STTLWriter.SYMBOLS_NS + "writeListener"</code>.
+*/
+@FunctionalInterface
+public interface WriteListener {
+
+    /**
+    * Called at the end of each write, from the writing thread.
+    *
+    * @param stats
+    * the time, allocations and counters of the write
+    */
+    void writeEnded(WriteStats stats);
+
+}
@@ -0,0 +1,257 @@
+package io.bdrc.jena.sttl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.jena.graph.Node;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+* Time, allocations and counters of a write, by phase, given to a
+* {@link WriteListener}. The phases are also recorded as JFR events
+* (io.bdrc.jena.sttl.WritePhase and io.bdrc.jena.sttl.Write) when a flight
+* recording enables them: they are disabled by default, so that continuous
+* recordings don't measure all the writes. Nothing is measured when there is
+* neither a listener nor a recording enabling the events.
+*
+* The phases of each graph are added up. Allocations are the bytes allocated
+* by the thread running the phase, so the rendering done by other threads in
+* parallel rendering is not counted in the rendering phase. The complex sorts,
+* run for each predicate with nested objects, are only timed (their
+* allocations are part of the rendering) and give one event per graph.
+*/
+public final class WriteStats {
+
+    public enum Phase {
+        /** Canonical labels of blank nodes, see canonicalBNodes */
+        CANONICAL_BNODES,
+        /** Incoming links of blank nodes */
+        BNODE_INDEX,
+        /** Detection of well-formed lists */
+        LISTS,
+        /** Classification of the blank nodes that can be nested */
+        NESTED_BNODES,
+        /** Search of the used prefixes, see onlyWriteUsedPrefixes */
+        PREFIX_SCAN,
+        /** Sort of the subjects (only its start with sortMemoryBudget) */
+        SUBJECT_SORT,
+        /** Sorts of the nested blank nodes with CompareComplex, part of rendering */
+        COMPLEX_SORT,
+        /** Output of the triples */
+        RENDERING
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final com.sun.management.ThreadMXBean threads = allocationBean();
+
+    private final LongAdder[] nanos = new LongAdder[PHASES.length];
+    private final LongAdder[] allocatedBytes = new LongAdder[PHASES.length];
+    final LongAdder subjects = new LongAdder();
+    final LongAdder nestedBNodes = new LongAdder();
+    final LongAdder lists = new LongAdder();
+    final LongAdder comparisons = new LongAdder();
+
+    private final WriteListener listener;
+
+    @Name("io.bdrc.jena.sttl.WritePhase")
+    @Label("Stable Turtle Write Phase")
+    @Category({ "Jena", "Stable Turtle" })
+    @Enabled(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Graph")
+        String graph;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("io.bdrc.jena.sttl.Write")
+    @Label("Stable Turtle Write")
+    @Category({ "Jena", "Stable Turtle" })
+    @Enabled(false)
+    static final class WriteEvent extends Event {
+        @Label("Subjects")
+        long subjects;
+        @Label("Nested Blank Nodes")
+        long nestedBNodes;
+        @Label("Lists")
+        long lists;
+        @Label("Comparisons")
+        long comparisons;
+    }
+
+    // enabled while a recording takes the phase events
+    private static final EventType PHASE_EVENT_TYPE = EventType.getEventType(PhaseEvent.class);
+
+    /**
+    * Start of a phase, see {@link WriteStats#begin()}.
+    */
+    static final class Mark {
+        final long nanos;
+        final long allocatedBytes;
+        final PhaseEvent event;
+
+        Mark(final long nanos, final long allocatedBytes, final PhaseEvent event) {
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.event = event;
+        }
+    }
+
+    private WriteStats(final WriteListener listener) {
+        this.listener = listener;
+        for (int i = 0; i < PHASES.length; i++) {
+            this.nanos[i] = new LongAdder();
+            this.allocatedBytes[i] = new LongAdder();
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+            return (com.sun.management.ThreadMXBean) bean;
+        return null;
+    }
+
+    private static long currentAllocatedBytes() {
+        return (threads == null) ? 0 : threads.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+    * @return
+    * the statistics of a new write, null if there is no listener and the
+    * events are not recorded
+    */
+    static WriteStats create(final WriteListener listener) {
+        if (listener == null && !PHASE_EVENT_TYPE.isEnabled())
+            return null;
+        return new WriteStats(listener);
+    }
+
+    Mark begin() {
+        final PhaseEvent event = new PhaseEvent();
+        event.begin();
+        return new Mark(System.nanoTime(), currentAllocatedBytes(), event);
+    }
+
+    void end(final Phase phase, final Node graphName, final Mark mark) {
+        final long allocated = currentAllocatedBytes() - mark.allocatedBytes;
+        final long nanos = System.nanoTime() - mark.nanos;
+        this.nanos[phase.ordinal()].add(nanos);
+        this.allocatedBytes[phase.ordinal()].add(allocated);
+        final PhaseEvent event = mark.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase.name();
+            event.graph = (graphName == null) ? null : graphName.toString();
+            event.nanos = nanos;
+            event.allocated = allocated;
+            event.commit();
+        }
+    }
+
+    /**
+    * Adds the time of a phase run many times in a graph, measured by the
+    * caller, with one event.
+    */
+    void total(final Phase phase, final Node graphName, final long nanos) {
+        if (nanos == 0)
+            return;
+        this.nanos[phase.ordinal()].add(nanos);
+        final PhaseEvent event = new PhaseEvent();
+        if (event.shouldCommit()) {
+            event.phase = phase.name();
+            event.graph = (graphName == null) ? null : graphName.toString();
+            event.nanos = nanos;
+            event.commit();
+        }
+    }
+
+    // end of the write: event and listener
+    void writeEnded() {
+        final WriteEvent event = new WriteEvent();
+        if (event.shouldCommit()) {
+            event.subjects = getSubjects();
+            event.nestedBNodes = getNestedBNodes();
+            event.lists = getLists();
+            event.comparisons = getComparisons();
+            event.commit();
+        }
+        if (this.listener != null)
+            this.listener.writeEnded(this);
+    }
+
+    /**
+    * @return
+    * the time spent in the phase, in nanoseconds
+    */
+    public long getNanos(final Phase phase) {
+        return this.nanos[phase.ordinal()].sum();
+    }
+
+    /**
+    * @return
+    * the bytes allocated during the phase, 0 if the JVM can't measure it
+    */
+    public long getAllocatedBytes(final Phase phase) {
+        return this.allocatedBytes[phase.ordinal()].sum();
+    }
+
+    /**
+    * @return
+    * the number of subjects written at the top level
+    */
+    public long getSubjects() {
+        return this.subjects.sum();
+    }
+
+    /**
+    * @return
+    * the number of blank nodes that can be written nested in [ ]
+    */
+    public long getNestedBNodes() {
+        return this.nestedBNodes.sum();
+    }
+
+    /**
+    * @return
+    * the number of well-formed lists
+    */
+    public long getLists() {
+        return this.lists.sum();
+    }
+
+    /**
+    * @return
+    * the number of comparisons made to sort subjects, predicates and objects
+    */
+    public long getComparisons() {
+        return this.comparisons.sum();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Phase phase : PHASES) {
+            sb.append(phase).append(": ").append(getNanos(phase) / 1000000).append(" ms, ")
+                    .append(getAllocatedBytes(phase)).append(" bytes\n");
+        }
+        sb.append("subjects: ").append(getSubjects()).append(", nested blank nodes: ").append(getNestedBNodes())
+                .append(", lists: ").append(getLists()).append(", comparisons: ").append(getComparisons());
+        return sb.toString();
+    }
+}
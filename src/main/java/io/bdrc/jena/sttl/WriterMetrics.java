@@ -0,0 +1,257 @@
+package io.bdrc.jena.sttl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+* Cumulative metrics of the writers, registered as the MBean
+* io.bdrc.jena.sttl:type=WriterMetrics by {@link InitSTTL#enableMetrics()}.
+*
+* The counters are LongAdders, so concurrent writers don't contend on them.
+* The write times are counted in a histogram with 4 buckets per power of 2,
+* the percentiles are the upper bounds of their buckets (within 25%).
+* Nothing is recorded until the metrics are enabled.
+*/
+public final class WriterMetrics implements WriterMetricsMBean {
+
+    public static final String OBJECT_NAME = "io.bdrc.jena.sttl:type=WriterMetrics";
+
+    private static volatile WriterMetrics instance = null;
+
+    /**
+    * Stream counting the bytes written through it.
+    */
+    static final class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+    // bucket i holds the times t with bucket(t) == i
+    private static final int SUB_BUCKETS_BITS = 2;
+    private static final int NB_BUCKETS = 64 << SUB_BUCKETS_BITS;
+
+    private final LongAdder graphs = new LongAdder();
+    private final LongAdder datasets = new LongAdder();
+    private final LongAdder triples = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder[] latencies = new LongAdder[NB_BUCKETS];
+    private final LongAccumulator peakNestedBNodes = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator peakLists = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator peakFreeBNodes = new LongAccumulator(Math::max, 0);
+    final LongAdder nodeTextHits = new LongAdder();
+    final LongAdder nodeTextMisses = new LongAdder();
+    final LongAdder abbreviationHits = new LongAdder();
+    final LongAdder abbreviationMisses = new LongAdder();
+    final LongAdder collationKeyHits = new LongAdder();
+    final LongAdder collationKeyMisses = new LongAdder();
+    final LongAdder fragmentHits = new LongAdder();
+    final LongAdder fragmentMisses = new LongAdder();
+
+    private WriterMetrics() {
+        for (int i = 0; i < NB_BUCKETS; i++)
+            this.latencies[i] = new LongAdder();
+    }
+
+    /**
+    * Registers the MBean if it isn't already.
+    *
+    * @return
+    * the metrics
+    */
+    static synchronized WriterMetrics enable() {
+        if (instance != null)
+            return instance;
+        final WriterMetrics res = new WriterMetrics();
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(res, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register " + OBJECT_NAME, e);
+        }
+        instance = res;
+        return res;
+    }
+
+    /**
+    * @return
+    * the metrics, null if they are not enabled
+    */
+    public static WriterMetrics get() {
+        return instance;
+    }
+
+    private static int bucket(final long nanos) {
+        if (nanos < (1L << SUB_BUCKETS_BITS))
+            return (int) Math.max(nanos, 0);
+        final int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        final int sub = (int) (nanos >>> (msb - SUB_BUCKETS_BITS)) & ((1 << SUB_BUCKETS_BITS) - 1);
+        return (msb << SUB_BUCKETS_BITS) | sub;
+    }
+
+    // the largest time of the bucket
+    private static long upperBound(final int bucket) {
+        if (bucket < (1 << SUB_BUCKETS_BITS))
+            return bucket;
+        final int msb = bucket >>> SUB_BUCKETS_BITS;
+        final long sub = bucket & ((1 << SUB_BUCKETS_BITS) - 1);
+        return ((((1L << SUB_BUCKETS_BITS) | sub) + 1) << (msb - SUB_BUCKETS_BITS)) - 1;
+    }
+
+    private void written(final long nbTriples, final long nbBytes, final long nanos) {
+        this.triples.add(nbTriples);
+        this.bytes.add(nbBytes);
+        this.nanos.add(nanos);
+        this.latencies[bucket(nanos)].increment();
+    }
+
+    void graphWritten(final long nbTriples, final long nbBytes, final long nanos) {
+        this.graphs.increment();
+        written(nbTriples, nbBytes, nanos);
+    }
+
+    void datasetWritten(final long nbQuads, final long nbBytes, final long nanos) {
+        this.datasets.increment();
+        written(nbQuads, nbBytes, nanos);
+    }
+
+    void analysisSizes(final int nestedBNodes, final int lists, final int freeBNodes) {
+        this.peakNestedBNodes.accumulate(nestedBNodes);
+        this.peakLists.accumulate(lists);
+        this.peakFreeBNodes.accumulate(freeBNodes);
+    }
+
+    private double latencyPercentileMillis(final double percentile) {
+        final long[] counts = new long[NB_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            counts[i] = this.latencies[i].sum();
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        final long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return upperBound(i) / 1e6;
+        }
+        return upperBound(NB_BUCKETS - 1) / 1e6;
+    }
+
+    private static double hitRate(final LongAdder hits, final LongAdder misses) {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    @Override
+    public long getGraphsWritten() {
+        return this.graphs.sum();
+    }
+
+    @Override
+    public long getDatasetsWritten() {
+        return this.datasets.sum();
+    }
+
+    @Override
+    public long getTriplesWritten() {
+        return this.triples.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytes.sum();
+    }
+
+    @Override
+    public double getWriteLatencyP50Millis() {
+        return latencyPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getWriteLatencyP99Millis() {
+        return latencyPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getTriplesPerSecond() {
+        final long n = this.nanos.sum();
+        return (n == 0) ? 0 : this.triples.sum() * 1e9 / n;
+    }
+
+    @Override
+    public long getPeakNestedBNodes() {
+        return this.peakNestedBNodes.get();
+    }
+
+    @Override
+    public long getPeakLists() {
+        return this.peakLists.get();
+    }
+
+    @Override
+    public long getPeakFreeBNodes() {
+        return this.peakFreeBNodes.get();
+    }
+
+    @Override
+    public double getNodeTextCacheHitRate() {
+        return hitRate(this.nodeTextHits, this.nodeTextMisses);
+    }
+
+    @Override
+    public double getAbbreviationCacheHitRate() {
+        return hitRate(this.abbreviationHits, this.abbreviationMisses);
+    }
+
+    @Override
+    public double getCollationKeyCacheHitRate() {
+        return hitRate(this.collationKeyHits, this.collationKeyMisses);
+    }
+
+    @Override
+    public double getFragmentCacheHitRate() {
+        return hitRate(this.fragmentHits, this.fragmentMisses);
+    }
+
+    @Override
+    public void reset() {
+        for (final LongAdder a : new LongAdder[] { graphs, datasets, triples, bytes, nanos, nodeTextHits, nodeTextMisses,
+                abbreviationHits, abbreviationMisses, collationKeyHits, collationKeyMisses, fragmentHits, fragmentMisses })
+            a.reset();
+        for (final LongAdder a : this.latencies)
+            a.reset();
+        this.peakNestedBNodes.reset();
+        this.peakLists.reset();
+        this.peakFreeBNodes.reset();
+    }
+}
@@ -0,0 +1,53 @@
+package io.bdrc.jena.sttl;
+
+/**
+* Cumulative metrics of the sttl and strig writers, see {@link WriterMetrics}.
+*/
+public interface WriterMetricsMBean {
+
+    /** @return the number of graphs written with sttl */
+    long getGraphsWritten();
+
+    /** @return the number of datasets written with strig */
+    long getDatasetsWritten();
+
+    /** @return the number of triples and quads written */
+    long getTriplesWritten();
+
+    /** @return the number of bytes written (only for writes to an OutputStream) */
+    long getBytesWritten();
+
+    /** @return the median write time in milliseconds */
+    double getWriteLatencyP50Millis();
+
+    /** @return the 99th percentile of the write time in milliseconds */
+    double getWriteLatencyP99Millis();
+
+    /** @return the triples written per second of writing */
+    double getTriplesPerSecond();
+
+    /** @return the largest number of nested blank nodes in a graph */
+    long getPeakNestedBNodes();
+
+    /** @return the largest number of well-formed lists in a graph */
+    long getPeakLists();
+
+    /** @return the largest number of free standing blank nodes in a graph */
+    long getPeakFreeBNodes();
+
+    /** @return the hit rate of the node text caches, see {@link NodeTextCache} */
+    double getNodeTextCacheHitRate();
+
+    /** @return the hit rate of the abbreviation caches of the prefix maps */
+    double getAbbreviationCacheHitRate();
+
+    /** @return the hit rate of the collation key caches, see collationKeyCacheSize */
+    double getCollationKeyCacheHitRate();
+
+    /** @return the hit rate of the fragment caches, see {@link FragmentCache} */
+    double getFragmentCacheHitRate();
+
+    /** Sets all the metrics back to 0. */
+    void reset();
+
+}
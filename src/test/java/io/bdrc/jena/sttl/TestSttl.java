@@ -1,8 +1,13 @@
 package io.bdrc.jena.sttl;
 
+import org.apache.jena.atlas.io.IndentedWriter;
 import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.mem.GraphMem;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.rdf.model.AnonId;
@@ -12,27 +17,55 @@ import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.riot.RDFParser;
 import org.apache.jena.riot.RDFWriter;
+import org.apache.jena.riot.system.PrefixMap;
+import org.apache.jena.riot.system.PrefixMapFactory;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
 import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
 import org.apache.jena.sparql.util.Context;
 import org.apache.jena.sparql.util.Symbol;
+import org.apache.jena.system.Txn;
 import org.apache.jena.vocabulary.RDF;
 import org.apache.jena.vocabulary.RDFS;
 import org.apache.jena.vocabulary.SKOS;
 import org.junit.Test;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.hamcrest.Matchers.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.Collator;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
 
 public class TestSttl {
 
@@ -65,6 +98,19 @@ public class TestSttl {
 	            NodeFactory.createURI("http://purl.bdrc.io/ontology/admin/1"),
 	            SKOS.altLabel.asNode()
 		));
+		// ranked predicates, shared by configuration, with predicates without a rank
+		ComparePredicates shared = ComparePredicates.forPriorities(NSPriorities, 2);
+		assertTrue(shared == ComparePredicates.forPriorities(new TreeMap<>(NSPriorities), 2));
+		shared.rank(list.subList(0, 3));
+		Collections.reverse(list);
+		Collections.sort(list, shared);
+		assertThat(list, contains(
+	            RDF.type.asNode(),
+	            RDFS.label.asNode(),
+	            NodeFactory.createURI("http://purl.bdrc.io/ontology/2"),
+	            NodeFactory.createURI("http://purl.bdrc.io/ontology/admin/1"),
+	            SKOS.altLabel.asNode()
+		));
 	}
 	
 	@Test
@@ -130,6 +176,64 @@ public class TestSttl {
 		));
 	}
 	
+    @Test
+    public void testCollationKeyCache() {
+        List<Node> list = new ArrayList<>();
+        String[] strings = {"བཀའ", "ཀ", "中文", "中", "ā", "a", "é", "E", "e", "Abc", "abc", "zzz", "bsgrub", "sgrub"};
+        String[] langs = {"bo", "zh-Hans", "sa-x-iast", "en"};
+        for (String lang : langs)
+            for (String str : strings)
+                list.add(NodeFactory.createLiteral(str, lang, RDF.dtLangString));
+        for (String str : strings)
+            list.add(NodeFactory.createLiteral(str, XSDDatatype.XSDstring));
+        List<Node> expected = new ArrayList<>(list);
+        Collections.shuffle(list, new Random(42));
+        Collections.sort(expected, new CompareLiterals());
+        // a cache smaller than the number of distinct strings forces evictions
+        Collections.sort(list, new CompareLiterals(5));
+        assertThat(list, contains(expected.toArray()));
+    }
+
+    @Test
+    public void testConcurrentCollation() throws Exception {
+        List<Node> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            expected.add(NodeFactory.createLiteral("ཀ" + Integer.toString(i * 7919 % 2000, 36) + "ā", "bo", RDF.dtLangString));
+        Collections.sort(expected, new CompareLiterals());
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Node>>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int seed = t;
+                results.add(pool.submit(() -> {
+                    List<Node> list = new ArrayList<>(expected);
+                    Collections.shuffle(list, new Random(seed));
+                    Collections.sort(list, new CompareLiterals());
+                    return list;
+                }));
+            }
+            for (Future<List<Node>> res : results)
+                assertThat(res.get(), contains(expected.toArray()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSetCollator() {
+        Collator collator = Collator.getInstance();
+        try {
+            CompareLiterals.setCollator(collator);
+            // the collator is copied, changing it has no effect until it is set again
+            collator.setStrength(Collator.PRIMARY);
+            assertTrue(CompareLiterals.compareStrings("a", "A", null) != 0);
+            CompareLiterals.setCollator(collator);
+            assertTrue(CompareLiterals.compareStrings("a", "A", null) == 0);
+        } finally {
+            CompareLiterals.setCollator(Collator.getInstance());
+        }
+    }
+
 	@Test
 	public void testBlanks() {
 		Model m = ModelFactory.createDefaultModel();
@@ -149,6 +253,29 @@ public class TestSttl {
 		assertThat(list, contains(r2.asNode(), r3.asNode(), r0.asNode(), r1.asNode(), r4.asNode(), r5.asNode()));
 	}
 	
+    @Test
+    public void testComplexSort() {
+        Model m = ModelFactory.createDefaultModel();
+        Random r = new Random(42);
+        List<Node> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Resource b = m.createResource()
+                    .addProperty(RDF.type, m.createResource("http://example.com/type" + r.nextInt(3)))
+                    .addProperty(RDFS.label, m.createLiteral("l" + i, "en"))
+                    .addProperty(SKOS.note, m.createLiteral("n" + r.nextInt(100)));
+            expected.add(b.asNode());
+        }
+        CompareComplex compComp = new CompareComplex(m.getGraph());
+        List<Node> list = new ArrayList<>(expected);
+        Collections.sort(expected, compComp);
+        compComp.sort(list);
+        assertThat(list, contains(expected.toArray()));
+        list = new ArrayList<>(expected.subList(0, 100));
+        Collections.shuffle(list, r);
+        compComp.sort(list);
+        assertThat(list, contains(expected.subList(0, 100).toArray()));
+    }
+
 	@Test
 	public void testComplex() throws IOException {
 	    String px = "http://purl.bdrc.io/ontology/";
@@ -273,6 +400,602 @@ public class TestSttl {
         String res = baos.toString().trim();
     }
 	
+    @Test
+    public void testCanonicalBNodes() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Lang strig = STriGWriter.registerWriter();
+        Context ctx = new Context();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "canonicalBNodes"), true);
+        // each parse gives different labels to the blank nodes
+        String previous = null;
+        for (int i = 0; i < 3; i++) {
+            Model m = ModelFactory.createDefaultModel();
+            m.read("src/test/resources/outline.ttl", "TURTLE");
+            m.add(m.createResource().addProperty(RDFS.label, "a"), RDFS.seeAlso, m.createResource().addProperty(RDFS.label, "b"));
+            m.add(m.createResource(), RDFS.seeAlso, m.createResource().addProperty(RDFS.label, "c"));
+            RDFWriter w = RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            w.output(baos);
+            String res = baos.toString();
+            if (previous != null)
+                assertTrue(res.equals(previous));
+            previous = res;
+        }
+        previous = null;
+        for (int i = 0; i < 3; i++) {
+            DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+            RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+            RDFWriter w = RDFWriter.create().source(dsg).context(ctx).lang(strig).build();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            w.output(baos);
+            String res = baos.toString();
+            if (previous != null)
+                assertTrue(res.equals(previous));
+            previous = res;
+        }
+        // cycles that refinement alone can't tell apart: two 3-cycles and a 6-cycle
+        StringBuilder sb = new StringBuilder("@prefix : <http://example.com/> .\n");
+        for (int[] cycle : new int[][] { { 0, 3 }, { 3, 6 }, { 6, 12 } }) {
+            for (int i = cycle[0]; i < cycle[1]; i++)
+                sb.append("_:n").append(i).append(" :p _:n").append((i + 1 < cycle[1]) ? i + 1 : cycle[0]).append(" .\n");
+        }
+        previous = null;
+        for (int i = 0; i < 10; i++) {
+            Model m = ModelFactory.createDefaultModel();
+            m.read(new StringReader(sb.toString()), null, "TURTLE");
+            RDFWriter w = RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            w.output(baos);
+            String res = baos.toString();
+            if (previous != null)
+                assertTrue(res.equals(previous));
+            previous = res;
+        }
+    }
+
+    @Test
+    public void testStreamWriter() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Lang strig = STriGWriter.registerWriter();
+        Context ctx = new Context();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "indentBase"), 3);
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "predicateBaseWidth"), 12);
+        // sorted output, streamed again, gives the same output
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/outline.ttl", "TURTLE");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+        String sorted = baos.toString();
+        baos = new ByteArrayOutputStream();
+        StreamRDF stream = StreamRDFWriter.getWriterStream(baos, new RDFFormat(sttl), ctx);
+        stream.start();
+        RDFParser.fromString(sorted, Lang.TURTLE).parse(stream);
+        stream.finish();
+        assertTrue(baos.toString().equals(sorted));
+        DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+        RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+        baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        sorted = baos.toString();
+        baos = new ByteArrayOutputStream();
+        stream = StreamRDFWriter.getWriterStream(baos, new RDFFormat(strig), ctx);
+        stream.start();
+        RDFParser.fromString(sorted, Lang.TRIG).parse(stream);
+        stream.finish();
+        assertTrue(baos.toString().equals(sorted));
+    }
+
+    @Test
+    public void testStreamWriterFreeBNode() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        StreamRDF stream = StreamRDFWriter.getWriterStream(baos, new RDFFormat(sttl), new Context());
+        stream.start();
+        Node p = NodeFactory.createURI("http://example.com/p");
+        Node q = NodeFactory.createURI("http://example.com/q");
+        Model expected = ModelFactory.createDefaultModel();
+        // [] :p [ :q "x" ] , not referenced by any subject
+        Node free = NodeFactory.createBlankNode();
+        Node nested = NodeFactory.createBlankNode();
+        List<Triple> triples = new ArrayList<>();
+        triples.add(Triple.create(free, p, nested));
+        triples.add(Triple.create(nested, q, NodeFactory.createLiteral("x")));
+        for (int i = 0; i < 20000; i++)
+            triples.add(Triple.create(NodeFactory.createURI("http://example.com/s" + i), p, NodeFactory.createLiteral("value " + i)));
+        for (Triple t : triples) {
+            stream.triple(t);
+            expected.getGraph().add(t);
+        }
+        // the subjects after the free blank node are written as they come
+        assertTrue(baos.size() > 0);
+        stream.finish();
+        Model m = ModelFactory.createDefaultModel();
+        m.read(new StringReader(baos.toString()), null, "TURTLE");
+        assertTrue(m.isIsomorphicWith(expected));
+    }
+
+    @Test
+    public void testStreamWriterSharedBNode() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        String prefix = "@prefix : <http://example.com/> .\n";
+        // the blank node subject is referenced by a later subject
+        String input = prefix + "_:b :q \"2\" . <http://example.com/s0> :x \"1\" . <http://example.com/s1> :p _:b .";
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        StreamRDF stream = StreamRDFWriter.getWriterStream(baos, new RDFFormat(sttl), new Context());
+        stream.start();
+        RDFParser.fromString(input, Lang.TURTLE).parse(stream);
+        stream.finish();
+        Model expected = ModelFactory.createDefaultModel();
+        expected.read(new StringReader(input), null, "TURTLE");
+        Model m = ModelFactory.createDefaultModel();
+        m.read(new StringReader(baos.toString()), null, "TURTLE");
+        assertTrue(m.isIsomorphicWith(expected));
+        assertTrue(baos.toString().contains("[ :q  \"2\" ]"));
+        // and by a subject too far to keep the block open: labels
+        StringBuilder sb = new StringBuilder(prefix).append("_:b :q \"2\" .\n");
+        for (int i = 0; i < 10000; i++)
+            sb.append("<http://example.com/s").append(i).append("> :x \"").append(i).append("\" .\n");
+        sb.append("<http://example.com/t> :p _:b .\n");
+        input = sb.toString();
+        baos = new ByteArrayOutputStream();
+        stream = StreamRDFWriter.getWriterStream(baos, new RDFFormat(sttl), new Context());
+        stream.start();
+        RDFParser.fromString(input, Lang.TURTLE).parse(stream);
+        stream.finish();
+        expected = ModelFactory.createDefaultModel();
+        expected.read(new StringReader(input), null, "TURTLE");
+        m = ModelFactory.createDefaultModel();
+        m.read(new StringReader(baos.toString()), null, "TURTLE");
+        assertTrue(m.isIsomorphicWith(expected));
+    }
+
+    @Test
+    public void testExternalSort() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/G844.ttl", "TURTLE");
+        Context ctx = new Context();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+        String inMemory = baos.toString();
+        // a tiny budget spills every subject to disk
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "sortMemoryBudget"), 100);
+        baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+        assertTrue(baos.toString().equals(inMemory));
+        CompareLiterals comp = new CompareLiterals();
+        try (ExternalNodeSort sort = new ExternalNodeSort(comp, 100)) {
+            List<Node> nodes = new ArrayList<>();
+            for (int i = 0; i < 50; i++)
+                nodes.add(NodeFactory.createURI("http://example.com/" + (i * 7919 % 50)));
+            nodes.add(NodeFactory.createBlankNode("b1"));
+            nodes.add(NodeFactory.createURI("http://example.com/3"));
+            for (Node n : nodes)
+                sort.add(n);
+            assertTrue(sort.nbRuns() > 1);
+            List<Node> sorted = new ArrayList<>();
+            sort.sorted().forEachRemaining(sorted::add);
+            List<Node> expected = new ArrayList<>(new LinkedHashSet<>(nodes));
+            Collections.sort(expected, comp);
+            assertThat(sorted, contains(expected.toArray()));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testExternalSortTxnDataset() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Lang strig = STriGWriter.registerWriter();
+        // transactional store, its graphs are views on the quads, as in TDB
+        DatasetGraph txn = DatasetGraphFactory.createTxnMem();
+        Txn.executeWrite(txn, () -> {
+            RDFDataMgr.read(txn, "src/test/resources/multigraphs.trig", Lang.TRIG);
+            RDFDataMgr.read(txn, "src/test/resources/G844.ttl", Lang.TURTLE);
+        });
+        Context ctx = new Context();
+        Txn.executeRead(txn, () -> {
+            assertTrue(!(txn.getDefaultGraph() instanceof GraphMem));
+            // sorted in memory
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RDFWriter.create().source(txn).context(ctx).lang(strig).build().output(out);
+            String expectedTrig = out.toString();
+            out = new ByteArrayOutputStream();
+            RDFWriter.create().source(txn.getDefaultGraph()).context(ctx).lang(sttl).build().output(out);
+            String expectedTtl = out.toString();
+            ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "sortMemoryBudget"), 100);
+            out = new ByteArrayOutputStream();
+            RDFWriter.create().source(txn).context(ctx).lang(strig).build().output(out);
+            assertTrue(out.toString().equals(expectedTrig));
+            out = new ByteArrayOutputStream();
+            RDFWriter.create().source(txn.getDefaultGraph()).context(ctx).lang(sttl).build().output(out);
+            assertTrue(out.toString().equals(expectedTtl));
+        });
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testGraphMem() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/G844.ttl", "TURTLE");
+        // the subjects of a GraphMem are listed from its subject index
+        Graph mem = new GraphMem();
+        GraphUtil.addInto(mem, m.getGraph());
+        mem.getPrefixMapping().setNsPrefixes(m.getGraph().getPrefixMapping());
+        Context ctx = new Context();
+        for (int budget : new int[] { 0, 100 }) {
+            if (budget > 0)
+                ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "sortMemoryBudget"), budget);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+            String expected = baos.toString();
+            baos = new ByteArrayOutputStream();
+            RDFWriter.create().source(mem).context(ctx).lang(sttl).build().output(baos);
+            assertTrue(baos.toString().equals(expected));
+        }
+    }
+
+    @Test
+    public void testParallelRendering() throws IOException {
+        Lang strig = STriGWriter.registerWriter();
+        DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+        RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+        Context ctx = new Context();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        String sequential = baos.toString();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "parallelRendering"), true);
+        // one subject per task
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "parallelChunkSize"), 1);
+        baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        assertTrue(baos.toString().equals(sequential));
+        ctx = new Context();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "parallelGraphs"), true);
+        baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        assertTrue(baos.toString().equals(sequential));
+    }
+
+    @Test
+    public void testNodeTextCache() throws IOException {
+        Lang strig = STriGWriter.registerWriter();
+        DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+        RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+        Context ctx = new Context();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "onlyWriteUsedPrefixes"), true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        String uncached = baos.toString();
+        NodeTextCache cache = new NodeTextCache(1000);
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "nodeTextCache"), cache);
+        for (int i = 0; i < 2; i++) {
+            baos = new ByteArrayOutputStream();
+            RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+            assertTrue(baos.toString().equals(uncached));
+        }
+        // the second write finds all its URIs in the cache
+        assertTrue(cache.getMisses() == cache.size() && cache.getHits() > cache.getMisses());
+    }
+
+    @Test
+    public void testFragmentCache() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/outline.ttl", "TURTLE");
+        Context ctx = new Context();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+        String uncached = baos.toString();
+        Path dir = Files.createTempDirectory("sttl-fragments");
+        FragmentCache cache = new FragmentCache(dir, 1 << 20);
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "fragmentCache"), cache);
+        for (int i = 0; i < 2; i++) {
+            baos = new ByteArrayOutputStream();
+            RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+            assertTrue(baos.toString().equals(uncached));
+        }
+        assertTrue(cache.getHits() == cache.getMisses() && cache.getHits() > 0);
+        // the directory is only used by one cache at a time
+        try {
+            new FragmentCache(dir, 1 << 20);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        long size = cache.size();
+        cache.close();
+        // entries are found again after a restart
+        FragmentCache reopened = new FragmentCache(dir, size);
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "fragmentCache"), reopened);
+        baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+        assertTrue(baos.toString().equals(uncached));
+        assertTrue(reopened.getHits() == cache.getHits() && reopened.getMisses() == 0);
+        reopened.close();
+        // and evicted by size
+        long maxBytes = size - 1;
+        FragmentCache smaller = new FragmentCache(dir, maxBytes);
+        assertTrue(smaller.size() > 0 && smaller.size() <= maxBytes);
+        smaller.clear();
+        smaller.close();
+    }
+
+    @Test
+    public void testBatchNormalizer() throws Exception {
+        Path dir = Files.createTempDirectory("sttl-batch");
+        Files.createDirectories(dir.resolve("sub"));
+        Files.copy(Paths.get("src/test/resources/G844.ttl"), dir.resolve("G844.ttl"));
+        Files.copy(Paths.get("src/test/resources/multigraphs.trig"), dir.resolve("sub/multigraphs.trig"));
+        Files.copy(Paths.get("src/test/resources/relative.ttl"), dir.resolve("sub/relative.ttl"));
+        Files.write(dir.resolve("sub/invalid.ttl"), "invalid .".getBytes());
+        BatchNormalizer normalizer = new BatchNormalizer(new Context(), 2);
+        BatchNormalizer.Result result = normalizer.run(Arrays.asList(dir));
+        assertTrue(result.getFiles() == 4 && result.getFailures().size() == 1 && result.getRewritten() == 3);
+        assertTrue(result.getFailures().get(0).path.endsWith("invalid.ttl"));
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/G844.ttl", "TURTLE");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).lang(STTLWriter.registerWriter()).build().output(baos);
+        assertTrue(Arrays.equals(Files.readAllBytes(dir.resolve("G844.ttl")), baos.toByteArray()));
+        // relative IRIs stay relative, without a base
+        String relative = new String(Files.readAllBytes(dir.resolve("sub/relative.ttl")), StandardCharsets.UTF_8);
+        assertTrue(relative.contains("<foo>") && relative.contains("<sub/bar>") && relative.contains("<#part>"));
+        assertTrue(!relative.contains("@base") && !relative.contains("file:") && !relative.contains(BatchNormalizer.BASE));
+        // normalized files are left untouched
+        result = normalizer.run(Arrays.asList(dir));
+        assertTrue(result.getFiles() == 4 && result.getRewritten() == 0);
+        // unless asked, the base isn't written
+        Context ctx = new Context();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "writeBase"), true);
+        result = new BatchNormalizer(ctx, 1).run(Arrays.asList(dir.resolve("sub/relative.ttl")));
+        assertTrue(result.getRewritten() == 1);
+        relative = new String(Files.readAllBytes(dir.resolve("sub/relative.ttl")), StandardCharsets.UTF_8);
+        assertTrue(relative.contains(BatchNormalizer.BASE) && relative.contains("<foo>"));
+    }
+
+    @Test
+    public void testSttlConfig() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/G844.ttl", "TURTLE");
+        Context ctx = new Context();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "indentBase"), 3);
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "onlyWriteUsedPrefixes"), true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+        String expected = baos.toString();
+        SttlConfig config = SttlConfig.fromContext(ctx);
+        // the options of the context are ignored when there is a configuration
+        Context other = new Context();
+        other.set(Symbol.create(STTLWriter.SYMBOLS_NS + "indentBase"), 8);
+        other.set(SttlConfig.SYMBOL, config);
+        baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(other).lang(sttl).build().output(baos);
+        assertTrue(baos.toString().equals(expected));
+        baos = new ByteArrayOutputStream();
+        new STTLWriterFactory(config).create(new RDFFormat(sttl))
+            .write(baos, m.getGraph(), PrefixMapFactory.create(m.getGraph().getPrefixMapping()), null, new Context());
+        assertTrue(baos.toString().equals(expected));
+    }
+
+    private static void indentedWriterCalls(IndentedWriter out) {
+        out.print("@prefix : ");
+        out.pad(15);
+        out.println("<http://example.com/> .");
+        out.incIndent(4);
+        out.pad();
+        out.print("a\r\nb\rc\n");
+        out.println();
+        out.print("ASCII ");
+        out.print("བོད་ཡིག ");
+        out.print("𠀋 ");
+        out.print('\uD840');
+        out.print('\uDC0B');
+        out.print("\uD840x\uDC0By");
+        out.print('\uD840');
+        out.println();
+        out.setAbsoluteIndent(out.getCol());
+        out.print('-', 3);
+        out.print("( ");
+        out.incIndent(2);
+        out.println();
+        out.print("x");
+        out.pad(30);
+        out.print(" ,");
+        out.pad(2, true);
+        out.print(new char[] { 'é', '\n', 'z' });
+        out.decIndent(2);
+        out.ensureStartOfLine();
+        out.println(" ] .");
+        out.setAbsoluteIndent(0);
+        out.print(String.join("", Collections.nCopies(5000, "<http://example.com/x> ")));
+        out.println("" + out.getRow() + " " + out.getCol() + " " + out.getCurrentOffset());
+    }
+
+    @Test
+    public void testUtf8IndentedWriter() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        IndentedWriter jena = new IndentedWriter(expected);
+        indentedWriterCalls(jena);
+        jena.flush();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Utf8IndentedWriter direct = new Utf8IndentedWriter(baos, 0);
+        indentedWriterCalls(direct);
+        direct.flush();
+        assertTrue(Arrays.equals(baos.toByteArray(), expected.toByteArray()));
+        assertTrue(direct.getRow() == jena.getRow() && direct.getCol() == jena.getCol());
+        // the text of the fragment cache is copied as bytes
+        String text = "  :a  :p  \"བོད་\"@bo , \"𠀋\" ;\n     a  :C .\n\n:b :p [ :q \"é𠀋x\" ]";
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        Utf8IndentedWriter w1 = new Utf8IndentedWriter(printed, 0);
+        ByteArrayOutputStream copied = new ByteArrayOutputStream();
+        Utf8IndentedWriter w2 = new Utf8IndentedWriter(copied, 0);
+        w1.print("x");
+        w2.print("x");
+        w1.print(text);
+        w2.printUtf8(text.getBytes(StandardCharsets.UTF_8));
+        assertTrue(w1.getRow() == w2.getRow() && w1.getCol() == w2.getCol());
+        w1.println(" .");
+        w2.println(" .");
+        w1.flush();
+        w2.flush();
+        assertTrue(Arrays.equals(printed.toByteArray(), copied.toByteArray()));
+    }
+
+    @Test
+    public void testAsyncFileOutput() throws IOException {
+        Lang strig = STriGWriter.registerWriter();
+        DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+        RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+        Context ctx = new Context();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        Path dir = Files.createTempDirectory("sttl-async");
+        Path file = dir.resolve("out.trig");
+        try {
+            // small buffers, so that the background thread writes many of them
+            ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "fileBufferSize"), 1024);
+            ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "forceFileOutput"), true);
+            AsyncFileOutputStream.write(file, dsg, ctx);
+            assertTrue(Arrays.equals(Files.readAllBytes(file), baos.toByteArray()));
+            // a new file has the same permissions as with a plain write
+            if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Path plain = Files.write(dir.resolve("plain.trig"), baos.toByteArray());
+                assertTrue(Files.getPosixFilePermissions(file).equals(Files.getPosixFilePermissions(plain)));
+                Files.delete(plain);
+            }
+            // a failed write leaves the target unchanged
+            try {
+                AsyncFileOutputStream.write(file, out -> {
+                    try {
+                        out.write(new byte[5000]);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    throw new IllegalStateException("failed");
+                }, ctx);
+                assertTrue(false);
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertTrue(Arrays.equals(Files.readAllBytes(file), baos.toByteArray()));
+            try (Stream<Path> s = Files.list(dir)) {
+                assertTrue(s.count() == 1);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testOutputComparison() throws IOException {
+        Lang sttl = STTLWriter.registerWriter();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/G844.ttl", "TURTLE");
+        Context ctx = new Context();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build().output(baos);
+        byte[] expected = baos.toByteArray();
+        Path file = Files.createTempFile("sttl-compare", ".ttl");
+        try {
+            Files.write(file, expected);
+            assertTrue(OutputComparison.firstDifference(file, m.getGraph(), ctx) == OutputComparison.IDENTICAL);
+            byte[] changed = expected.clone();
+            changed[expected.length / 2] ^= 1;
+            Files.write(file, changed);
+            assertTrue(OutputComparison.firstDifference(file, m.getGraph(), ctx) == expected.length / 2);
+            Files.write(file, Arrays.copyOf(expected, 100));
+            assertTrue(OutputComparison.firstDifference(file, m.getGraph(), ctx) == 100);
+            Files.write(file, Arrays.copyOf(expected, expected.length + 1));
+            assertTrue(OutputComparison.firstDifference(file, m.getGraph(), ctx) == expected.length);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        Lang strig = STriGWriter.registerWriter();
+        DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+        RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+        RDFWriter writer = RDFWriter.create().source(dsg).context(ctx).lang(strig).build();
+        baos = new ByteArrayOutputStream();
+        writer.output(baos);
+        assertTrue(OutputComparison.firstDifference(new ByteArrayInputStream(baos.toByteArray()), writer::output) == OutputComparison.IDENTICAL);
+        assertTrue(OutputComparison.firstDifference(new ByteArrayInputStream(new byte[0]), writer::output) == 0);
+    }
+
+    @Test
+    public void testWriteListener() throws IOException {
+        Lang strig = STriGWriter.registerWriter();
+        DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+        RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+        Context ctx = new Context();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "onlyWriteUsedPrefixes"), true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        String expected = baos.toString();
+        List<WriteStats> stats = new ArrayList<>();
+        ctx.set(Symbol.create(STTLWriter.SYMBOLS_NS + "writeListener"), (WriteListener) stats::add);
+        baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).context(ctx).lang(strig).build().output(baos);
+        assertTrue(baos.toString().equals(expected));
+        assertTrue(stats.size() == 1);
+        WriteStats s = stats.get(0);
+        assertTrue(s.getSubjects() > 0 && s.getComparisons() > 0);
+        assertTrue(s.getNanos(WriteStats.Phase.RENDERING) > 0 && s.getNanos(WriteStats.Phase.PREFIX_SCAN) > 0);
+        assertTrue(s.getNanos(WriteStats.Phase.CANONICAL_BNODES) == 0);
+    }
+
+    @Test
+    public void testWriteEventsDisabledByDefault() throws Exception {
+        // a continuous recording with the default settings doesn't measure the writes
+        try (Recording recording = new Recording(Configuration.getConfiguration("default"))) {
+            recording.start();
+            assertTrue(WriteStats.create(null) == null);
+            recording.enable(WriteStats.PhaseEvent.class);
+            assertTrue(WriteStats.create(null) != null);
+        }
+    }
+
+    @Test
+    public void testWriterMetrics() throws Exception {
+        Lang sttl = STTLWriter.registerWriter();
+        Lang strig = STriGWriter.registerWriter();
+        WriterMetrics metrics = InitSTTL.enableMetrics();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(WriterMetrics.OBJECT_NAME)));
+        metrics.reset();
+        Model m = ModelFactory.createDefaultModel();
+        m.read("src/test/resources/G844.ttl", "TURTLE");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        RDFWriter.create().source(m.getGraph()).lang(sttl).build().output(baos);
+        DatasetGraph dsg = DatasetFactory.createGeneral().asDatasetGraph();
+        RDFDataMgr.read(dsg, "src/test/resources/multigraphs.trig", Lang.TRIG);
+        ByteArrayOutputStream baos2 = new ByteArrayOutputStream();
+        RDFWriter.create().source(dsg).lang(strig).build().output(baos2);
+        assertTrue(metrics.getGraphsWritten() == 1 && metrics.getDatasetsWritten() == 1);
+        assertTrue(metrics.getBytesWritten() == baos.size() + baos2.size());
+        assertTrue(metrics.getTriplesWritten() == m.size() + dsg.stream().count());
+        assertTrue(metrics.getWriteLatencyP99Millis() >= metrics.getWriteLatencyP50Millis() && metrics.getWriteLatencyP50Millis() > 0);
+        assertTrue(metrics.getTriplesPerSecond() > 0 && metrics.getPeakNestedBNodes() > 0);
+    }
+
+    @Test
+    public void testCheckedPrefixMap() {
+        PrefixMap pm = PrefixMapFactory.create();
+        pm.add("ex", "http://example.com/");
+        pm.add("exa", "http://example.com/a");
+        pm.add("exh", "http://example.com/h#");
+        CheckedPrefixMap cpm = new CheckedPrefixMap(pm);
+        // namespace ending at the last separator first, then the longest one
+        assertTrue(cpm.abbreviate("http://example.com/abc").equals("ex:abc"));
+        assertTrue(cpm.abbreviate("http://example.com/h#x").equals("exh:x"));
+        assertTrue(cpm.abbreviate("http://example.com/a/b#c") == null);
+        assertTrue(cpm.abbreviate("http://example.com/abc").equals("ex:abc"));
+        assertTrue(cpm.isUsed("ex") && cpm.isUsed("exh") && !cpm.isUsed("exa"));
+        cpm.add("exb", "http://example.com/b/");
+        assertTrue(cpm.abbreviate("http://example.com/b/c").equals("exb:c"));
+        assertTrue(cpm.getUsedMappingCopy().keySet().equals(new HashSet<>(Arrays.asList("ex", "exh", "exb"))));
+    }
+
     @Test
     public void testPrefixMap() throws IOException {
         Model m = ModelFactory.createDefaultModel();
@@ -297,5 +1020,16 @@ public class TestSttl {
         w.output(baos);
         res = baos.toString();
         //System.out.println(res);
+        // prefixes only used in list or "a" syntax are not written
+        m = ModelFactory.createDefaultModel();
+        content = "@prefix : <http://ex.org/> . @prefix rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> . "
+                + "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> . "
+                + ":s a :C ; :p ( 1 :x ) ; :q \"abc\"^^xsd:token .";
+        m.read(new StringReader(content), null, "TURTLE");
+        w = RDFWriter.create().source(m.getGraph()).context(ctx).lang(sttl).build();
+        baos = new ByteArrayOutputStream();
+        w.output(baos);
+        res = baos.toString();
+        assertTrue(res.startsWith("@prefix :      <http://ex.org/> .\n@prefix xsd:   <http://www.w3.org/2001/XMLSchema#> .\n\n"));
     }
 }